@@ -0,0 +1,26 @@
+package src.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks with the gc profiler, so every result has its allocation rate (gc.alloc.rate.norm is
+// bytes per operation) next to its throughput. Takes the usual JMH arguments, e.g. a regex of benchmarks
+// to run, and writes the results to jmh-results.json for comparing runs.
+public class BenchmarkMain {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .parent(commandLine)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-results.json");
+        if (commandLine.getIncludes().isEmpty()) options.include(BenchmarkMain.class.getPackageName() + ".*Benchmark");
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,53 @@
+package src.bench;
+
+import org.openjdk.jmh.annotations.*;
+import src.agent.BuildingRegistry;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// What RentalAgent.updateBuildingsList and the buildings list reply cost with many buildings.
+// A ping from a known building is the common case, a building joining or leaving copies the list.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BuildingRegistryBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int buildings;
+
+    private BuildingRegistry registry;
+    private String[] buildingIds;
+
+    @Setup
+    public void setUp() {
+        registry = new BuildingRegistry(Long.MAX_VALUE / 2);
+        buildingIds = new String[buildings];
+        for (int i = 0; i < buildings; i++) {
+            buildingIds[i] = "Building" + i;
+            registry.seen(buildingIds[i]);
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean pingOfKnownBuilding() {
+        return registry.seen(buildingIds[ThreadLocalRandom.current().nextInt(buildingIds.length)]);
+    }
+
+    // the list is encoded once per change, every later request gets the same bytes
+    @Benchmark
+    public byte[] buildingsList() throws IOException {
+        return registry.snapshot().encoded();
+    }
+
+    @Benchmark
+    public boolean joinAndLeave() {
+        registry.seen("NewBuilding");
+        return registry.remove("NewBuilding");
+    }
+}
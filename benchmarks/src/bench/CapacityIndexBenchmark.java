@@ -0,0 +1,65 @@
+package src.bench;
+
+import org.openjdk.jmh.annotations.*;
+import src.agent.CapacityIndex;
+import src.codec.MessageCodec;
+import src.codec.MessageCodecs;
+import src.messages.ReplyBuildingPing;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// What a building search and the pings that feed its index cost with many buildings.
+// A search between two changes gets the encoded reply of the first one, after a change it walks the
+// buildings with enough rooms and encodes the page again.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CapacityIndexBenchmark {
+
+    @Param({"100", "10000"})
+    public int buildings;
+
+    // rooms asked for, with free rooms spread over 0..1000 about this fraction of the buildings match
+    @Param({"1", "500", "990"})
+    public int minRooms;
+
+    private CapacityIndex index;
+    private final MessageCodec codec = MessageCodecs.JSON;
+    private final AtomicLong pingVersion = new AtomicLong();
+
+    @Setup
+    public void setUp() {
+        index = new CapacityIndex();
+        for (int i = 0; i < buildings; i++) ping(i);
+    }
+
+    @Benchmark
+    public byte[] searchUnchanged() throws IOException {
+        return index.search(minRooms, 20, 0, codec);
+    }
+
+    // every search follows a ping that moved a building, so nothing comes from the cache
+    @Benchmark
+    public byte[] searchAfterChange() throws IOException {
+        ping(ThreadLocalRandom.current().nextInt(buildings));
+        return index.search(minRooms, 20, 0, codec);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long ping() {
+        ping(ThreadLocalRandom.current().nextInt(buildings));
+        return index.version();
+    }
+
+    private void ping(int building) {
+        int free = ThreadLocalRandom.current().nextInt(1001);
+        index.update(new ReplyBuildingPing("Building" + building, free, 1000, pingVersion.incrementAndGet()));
+    }
+}
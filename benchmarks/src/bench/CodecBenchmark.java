@@ -0,0 +1,79 @@
+package src.bench;
+
+import org.openjdk.jmh.annotations.*;
+import src.codec.MessageCodec;
+import src.codec.MessageCodecs;
+import src.messages.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Encoding and decoding of every src.messages record, with the JSON (Jackson) and the binary codec.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    @Param({"json", "binary"})
+    public String codec;
+
+    @Param({"RequestRoomReservation", "ReplyRoomReservation", "RequestConfirmReservation", "ReplyConfirmReservation",
+            "RequestCancelReservation", "ReplyCancelReservation", "ReplyBuildingPing", "ReplyReservationExpired",
+            "ReplyExecutionError", "RequestBuildingsList"})
+    public String message;
+
+    private MessageCodec messageCodec;
+    private Object record;
+    private Class<?> type;
+    private byte[] body;
+    private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+    @Setup
+    public void setUp() throws IOException {
+        messageCodec = MessageCodecs.byName(codec);
+        record = sample(message);
+        type = record.getClass();
+        body = messageCodec.encode(record);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return messageCodec.encode(record);
+    }
+
+    // into a reused buffer, what a publisher with its own buffer would do
+    @Benchmark
+    public ByteBuffer encodeIntoBuffer() throws IOException {
+        buffer.clear();
+        messageCodec.encode(record, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Object decode() throws IOException {
+        return messageCodec.decode(body, type);
+    }
+
+    static Object sample(String message) {
+        String reservationNumber = "Building42-2t31w6sx9h4w";
+        return switch (message) {
+            case "RequestRoomReservation" -> new RequestRoomReservation(3, "Building42", "2026-10-16", "2026-10-19");
+            case "ReplyRoomReservation" -> new ReplyRoomReservation(reservationNumber, "Building42");
+            case "RequestConfirmReservation" -> new RequestConfirmReservation(reservationNumber);
+            case "ReplyConfirmReservation" -> new ReplyConfirmReservation(reservationNumber, "Building42");
+            case "RequestCancelReservation" -> new RequestCancelReservation(reservationNumber);
+            case "ReplyCancelReservation" -> new ReplyCancelReservation(reservationNumber, "Reservation " + reservationNumber + " canceled");
+            case "ReplyBuildingPing" -> new ReplyBuildingPing("Building42", 7, 10, 1_760_000_000_000_042L);
+            case "ReplyReservationExpired" -> new ReplyReservationExpired(reservationNumber, "Building42");
+            case "ReplyExecutionError" -> new ReplyExecutionError("Not enough rooms available in Building42");
+            case "RequestBuildingsList" -> new RequestBuildingsList(new LinkedList<>(List.of("Building1", "Building2", "Building3", "Building42")));
+            default -> throw new IllegalArgumentException("No sample of " + message);
+        };
+    }
+}
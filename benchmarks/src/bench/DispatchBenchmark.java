@@ -0,0 +1,76 @@
+package src.bench;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import src.codec.MessageCodec;
+import src.codec.MessageCodecs;
+import src.messages.MessageDispatcher;
+import src.messages.MessageTemplates;
+import src.messages.MessageType;
+import src.messages.RequestRoomReservation;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Finding the handler of a delivery, by the type property or by the "class" header older publishers send,
+// with and without decoding the body for a typed handler.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    // "type": the AMQP type property, "header": only the legacy "class" header
+    @Param({"type", "header"})
+    public String taggedBy;
+
+    @Param({"json", "binary"})
+    public String codec;
+
+    private Delivery delivery;
+    private Blackhole blackhole;
+    private final MessageDispatcher untyped = new MessageDispatcher();
+    private final MessageDispatcher typed = new MessageDispatcher();
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        for (MessageType type : MessageType.values()) {
+            untyped.on(type, (consumerTag, delivery) -> this.blackhole.consume(delivery));
+        }
+        typed.on(MessageType.REQUEST_ROOM_RESERVATION, RequestRoomReservation.class, (consumerTag, delivery, message) -> this.blackhole.consume(message));
+
+        MessageCodec messageCodec = MessageCodecs.byName(codec);
+        AMQP.BasicProperties props = MessageTemplates.of(MessageType.REQUEST_ROOM_RESERVATION, messageCodec, "Customer42");
+        if (taggedBy.equals("header")) {
+            props = new AMQP.BasicProperties.Builder()
+                    .headers(Map.of(MessageType.HEADER_CLASS, MessageType.REQUEST_ROOM_RESERVATION.headerName))
+                    .contentType(messageCodec.contentType())
+                    .replyTo("Customer42")
+                    .build();
+        }
+        byte[] body = messageCodec.encode(new RequestRoomReservation(3, "Building42"));
+        delivery = new Delivery(new Envelope(1, false, "ExchangeCustomerRequest", "customerRequest"), props, body);
+    }
+
+    @Benchmark
+    public MessageType resolveType() {
+        return MessageType.of(delivery.getProperties());
+    }
+
+    @Benchmark
+    public boolean dispatch() throws IOException {
+        return untyped.dispatch("consumer", delivery);
+    }
+
+    @Benchmark
+    public boolean dispatchAndDecode() throws IOException {
+        return typed.dispatch("consumer", delivery);
+    }
+}
@@ -0,0 +1,56 @@
+package src.bench;
+
+import com.rabbitmq.client.AMQP;
+import org.openjdk.jmh.annotations.*;
+import src.codec.MessageCodec;
+import src.codec.MessageCodecs;
+import src.messages.MessageTemplates;
+import src.messages.MessageType;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// BasicProperties for an outgoing message: built from scratch as every publish used to, or taken from
+// the MessageTemplates, with a reply address and with a correlation id on top.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PropertiesBenchmark {
+    private final MessageCodec codec = MessageCodecs.JSON;
+    private final String replyTo = "Customer42";
+    private final String correlationId = "Customer42-mvbfckmg-2t";
+
+    // a header map and a builder per message
+    @Benchmark
+    public AMQP.BasicProperties built() {
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(MessageType.HEADER_CLASS, MessageType.REPLY_ROOM_RESERVATION.headerName);
+        return new AMQP.BasicProperties.Builder()
+                .headers(headers)
+                .type(MessageType.REPLY_ROOM_RESERVATION.typeCode)
+                .contentType(codec.contentType())
+                .replyTo(replyTo)
+                .correlationId(correlationId)
+                .build();
+    }
+
+    @Benchmark
+    public AMQP.BasicProperties template() {
+        return MessageTemplates.of(MessageType.REPLY_ROOM_RESERVATION, codec);
+    }
+
+    @Benchmark
+    public AMQP.BasicProperties templateWithReplyTo() {
+        return MessageTemplates.of(MessageType.REPLY_ROOM_RESERVATION, codec, replyTo);
+    }
+
+    // what a reply costs, the correlation id can't be cached
+    @Benchmark
+    public AMQP.BasicProperties templateWithCorrelationId() {
+        return MessageTemplates.of(MessageType.REPLY_ROOM_RESERVATION, codec, replyTo, correlationId);
+    }
+}
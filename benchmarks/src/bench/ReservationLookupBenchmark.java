@@ -0,0 +1,57 @@
+package src.bench;
+
+import org.openjdk.jmh.annotations.*;
+import src.reservations.ReservationStore;
+import src.reservations.RoomCalendar;
+import src.reservations.SequentialIdGenerator;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Looking up a reservation of a building by number in stores of different sizes. Building used to scan a list
+// with a stream filter for this, the store answers in O(1).
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReservationLookupBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    public int reservations;
+
+    private ReservationStore store;
+    private long[] numbers;
+    private final String[] customers = new String[1000];
+
+    @Setup
+    public void setUp() {
+        store = new ReservationStore(new RoomCalendar(reservations, 365), reservations, Runtime.getRuntime().availableProcessors() * 4);
+        for (int i = 0; i < customers.length; i++) customers[i] = "Customer" + i;
+        SequentialIdGenerator ids = new SequentialIdGenerator();
+        numbers = new long[reservations];
+        for (int i = 0; i < reservations; i++) {
+            numbers[i] = ids.nextId();
+            store.hold(numbers[i], customers[i % customers.length], 1, RoomCalendar.OPEN_START, RoomCalendar.OPEN_END);
+        }
+    }
+
+    @Benchmark
+    public ReservationStore.Reservation find() {
+        return store.find(numbers[ThreadLocalRandom.current().nextInt(numbers.length)]);
+    }
+
+    @Benchmark
+    public ReservationStore.Reservation findMissing() {
+        return store.find(-ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE));
+    }
+
+    // a confirmation by someone else's customer, from four threads: segment lock, lookup and owner check,
+    // the reservation stays as it is so every call does the same work
+    @Benchmark
+    @Threads(4)
+    public ReservationStore.Transition transitionRejected() {
+        return store.transition(numbers[ThreadLocalRandom.current().nextInt(numbers.length)], "Nobody", ReservationStore.State.CONFIRMED);
+    }
+}
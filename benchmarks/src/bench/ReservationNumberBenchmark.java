@@ -0,0 +1,50 @@
+package src.bench;
+
+import org.openjdk.jmh.annotations.*;
+import src.reservations.ReservationIdGenerator;
+import src.reservations.ReservationNumber;
+import src.reservations.SequentialIdGenerator;
+import src.reservations.SnowflakeIdGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+// Handing out reservation numbers and turning them into the text customers see, and back.
+// Snowflake ids are limited to 4096 per millisecond and node, above that nextId waits for the next millisecond.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReservationNumberBenchmark {
+    private final ReservationIdGenerator sequential = new SequentialIdGenerator();
+    private final ReservationIdGenerator snowflake = new SnowflakeIdGenerator(SnowflakeIdGenerator.nodeIdOf("Building42"));
+    private final String reservationNumber = ReservationNumber.format("Building42", snowflake.nextId());
+
+    @Benchmark
+    @Threads(4)
+    public long sequentialId() {
+        return sequential.nextId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long snowflakeId() {
+        return snowflake.nextId();
+    }
+
+    @Benchmark
+    public String nextReservationNumber() {
+        return ReservationNumber.format("Building42", snowflake.nextId());
+    }
+
+    @Benchmark
+    public long parse() {
+        return ReservationNumber.parse(reservationNumber);
+    }
+
+    @Benchmark
+    public String buildingOf() {
+        return ReservationNumber.buildingOf(reservationNumber);
+    }
+}
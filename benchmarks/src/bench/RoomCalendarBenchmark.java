@@ -0,0 +1,97 @@
+package src.bench;
+
+import org.openjdk.jmh.annotations.*;
+import src.reservations.RoomCalendar;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Checking and booking stays in calendars of one to a hundred years, already full of bookings.
+// The calendar answers from the O(log n) nodes of its segment tree that cover the stay, the nightByNight
+// benchmarks do the same with a plain array of rooms per night, O(nights of the stay), for comparison.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoomCalendarBenchmark {
+    private static final int FIRST_DAY = 20_000;
+    private static final int CAPACITY = 1_000_000;
+
+    @Param({"365", "3650", "36500"})
+    public int days;
+
+    // nights per stay
+    @Param({"7", "180"})
+    public int nights;
+
+    private RoomCalendar calendar;
+    private int[] bookedPerNight;
+
+    @Setup
+    public void setUp() {
+        calendar = new RoomCalendar(CAPACITY, FIRST_DAY, days);
+        bookedPerNight = new int[days];
+        // as many stays as there are days, of up to a month each
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < days; i++) {
+            int checkIn = random.nextInt(days);
+            int checkOut = Math.min(days, checkIn + 1 + random.nextInt(30));
+            int rooms = 1 + random.nextInt(10);
+            calendar.tryReserve(FIRST_DAY + checkIn, FIRST_DAY + checkOut, rooms);
+            for (int night = checkIn; night < checkOut; night++) bookedPerNight[night] += rooms;
+        }
+    }
+
+    private int randomCheckIn() {
+        return ThreadLocalRandom.current().nextInt(Math.max(1, days - nights));
+    }
+
+    @Benchmark
+    public int maxBooked() {
+        int checkIn = randomCheckIn();
+        return calendar.maxBooked(FIRST_DAY + checkIn, FIRST_DAY + checkIn + nights);
+    }
+
+    // what the pings report, every night of the calendar
+    @Benchmark
+    public int available() {
+        return calendar.available(RoomCalendar.OPEN_START, RoomCalendar.OPEN_END);
+    }
+
+    // a hold and its cancellation, the calendar is the same after every call
+    @Benchmark
+    public boolean reserveAndRelease() {
+        int checkIn = FIRST_DAY + randomCheckIn();
+        boolean reserved = calendar.tryReserve(checkIn, checkIn + nights, 1);
+        if (reserved) calendar.release(checkIn, checkIn + nights, 1);
+        return reserved;
+    }
+
+    @Benchmark
+    public int nightByNightMaxBooked() {
+        int checkIn = randomCheckIn();
+        int most = 0;
+        for (int night = checkIn; night < checkIn + nights; night++) most = Math.max(most, bookedPerNight[night]);
+        return most;
+    }
+
+    @Benchmark
+    public boolean nightByNightReserveAndRelease() {
+        int checkIn = randomCheckIn();
+        int most = 0;
+        for (int night = checkIn; night < checkIn + nights; night++) most = Math.max(most, bookedPerNight[night]);
+        if (most + 1 > CAPACITY) return false;
+        for (int night = checkIn; night < checkIn + nights; night++) bookedPerNight[night]++;
+        for (int night = checkIn; night < checkIn + nights; night++) bookedPerNight[night]--;
+        return true;
+    }
+
+    @Benchmark
+    public int nightByNightAvailable() {
+        int most = 0;
+        for (int booked : bookedPerNight) most = Math.max(most, booked);
+        return CAPACITY - most;
+    }
+}
@@ -1,283 +1,531 @@
 package src;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.BuiltinExchangeType;
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.*;
 
 import java.io.IOException;
 
+import src.codec.MessageCodec;
+import src.codec.MessageCodecs;
+import src.logging.Log;
 import src.messages.*;
-
+import src.metrics.Metrics;
+import src.reservations.ReservationIdGenerator;
+import src.reservations.ReservationJournal;
+import src.reservations.ReservationNumber;
+import src.reservations.ReservationStore;
+import src.reservations.ReservationStore.Origin;
+import src.reservations.ReservationStore.State;
+import src.reservations.ReservationStore.Transition;
+import src.reservations.RoomCalendar;
+import src.reservations.TimingWheel;
+import src.runtime.AckManager;
+import src.runtime.ExecutionMode;
+import src.runtime.ChannelPool;
+import src.runtime.DedupCache;
+import src.transport.MessageChannel;
+import src.transport.Transport;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
+import static src.messages.MessageType.*;
 import static src.utils.Common.*;
+import static src.utils.Config.*;
 import static src.utils.ANSIColors.*;
 
-public class Building {
-    private Channel channel;
-    private final ObjectMapper mapper = new ObjectMapper();
+// A building on its own runs its own connection, consumers and timers. A building of a BuildingHost shares
+// those, and its dedup cache and metrics, with the other buildings of the host, which hands it its requests,
+// pings for it and advances its holds.
+public final class Building {
+    // the host this building runs in, null when it runs on its own
+    private final BuildingHost host;
+    // RabbitMQ, or the broker inside this JVM
+    private Transport transport;
+    // declares the topology, every consumer then gets a channel of its own
+    private MessageChannel channel;
+    // replies and pings are published through the pool
+    private ChannelPool publishers;
+    // platform or virtual threads for callbacks, handlers and timers
+    private final ExecutionMode execution = ExecutionMode.byName(THREADS);
+    private final ScheduledExecutorService scheduler;
+    // codec of the messages this building starts itself, replies use the codec of the request
+    private final MessageCodec codec = MessageCodecs.configured();
     // personal properties
     private String consumerName = "";
-    private int availableRooms;
-    private final Set<Reservation> requestedReservations, confirmedReservations;
-    // Set, so duplicate reservation numbers are not possible,
-    // I have overwritten hashCode() and equals() of Reservation class,
-    // to be completely sure that a set won't add two of the same reservation
-    // Comparison of equals() only takes resnum into account.
+    // Rooms booked per night, taken and given back all or nothing, safe with any number of consumers
+    private final RoomCalendar calendar;
+    // Both unconfirmed and confirmed reservations, looked up by number in O(1).
+    // The store rejects duplicate reservation numbers and only lets the owner move a reservation forward.
+    private final ReservationStore reservations;
+    private ReservationIdGenerator reservationIds;
+    // every change of the reservations is journaled, null when journaling is turned off
+    private ReservationJournal journal;
+    // gives the rooms of unconfirmed reservations back once their hold runs out
+    private final TimingWheel holds;
+    // replies to recent requests, a redelivered request gets the same reply again instead of being handled twice
+    private final DedupCache handled;
+    // counts and times every request from delivery to ack
+    private Metrics metrics;
+    private LongAdder duplicates;
+    // grows with every ping, starting from the time the building started, so it keeps growing across restarts
+    private final AtomicLong pingVersion = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final AtomicBoolean pingPending = new AtomicBoolean();
+    private final MessageDispatcher dispatcher = new MessageDispatcher()
+            .on(REQUEST_ROOM_RESERVATION, RequestRoomReservation.class, this::makeReservation)
+            .on(REQUEST_CONFIRM_RESERVATION, RequestConfirmReservation.class, this::confirmReservation)
+            .on(REQUEST_CANCEL_RESERVATION, RequestCancelReservation.class, this::cancelReservation);
 
     public Building(int availableRooms) {
-        this.availableRooms = availableRooms;
-        this.requestedReservations = new HashSet<>();
-        this.confirmedReservations = new HashSet<>();
+        this(availableRooms, null);
+    }
+
+    // a building of the host, it starts with startHosted
+    Building(int availableRooms, BuildingHost host) {
+        this.host = host;
+        this.calendar = new RoomCalendar(availableRooms, CALENDAR_DAYS);
+        if (host == null) {
+            this.reservations = new ReservationStore(calendar);
+            this.scheduler = execution.newScheduler("building-timer");
+            this.holds = new TimingWheel(HOLD_TICK_MS, HOLD_WHEEL_SIZE, this::expireHold);
+            this.handled = new DedupCache(DEDUP_SIZE, DEDUP_TTL_MS);
+        } else {
+            // only the host's shard consumer and timers touch a hosted building, a few segments are plenty
+            this.reservations = new ReservationStore(calendar, 64, 2);
+            this.scheduler = host.scheduler();
+            this.holds = new TimingWheel(HOLD_TICK_MS, HOST_HOLD_WHEEL_SIZE, this::expireHold);
+            this.handled = host.handled();
+        }
     }
 
     public static void main(String[] args) {
         Random rand = new Random();
         int id = rand.nextInt(100);
-        String name = "Building" + id;
+        // a building that restarts under its old name recovers its reservations
+        String name = args.length > 0 ? args[0] : "Building" + id;
         new Building(10).run(name);
     }
 
     public void run(String name) {
+        try {
+            run(name, Transport.connect(name, execution));
+        } catch (IOException | TimeoutException err) {
+            throw new RuntimeException(err);
+        }
+    }
+
+    public void run(String name, Transport transport) {
         try {
             consumerName = name;
+            reservationIds = ReservationIdGenerator.forBuilding(consumerName);
             // communication setup
-            ConnectionFactory factory = new ConnectionFactory();
-            Connection connection = factory.newConnection();
-            channel = connection.createChannel();
-            channel.addReturnListener((undeliveredMessage) -> System.out.println("Message " + (new String(undeliveredMessage.getBody())) + " not delivered"));
-
-            // Personal building queue
-            channel.queueDeclare(consumerName, false, false, false, null);
+            this.transport = transport;
+            execution.reportThreads(scheduler, THREADS_REPORT_MS);
+            channel = transport.createChannel();
+            startMetrics();
+            publishers = new ChannelPool(transport, BUILDING_CONSUMERS, (undeliveredMessage) -> {
+                metrics.returned();
+                Log.warn(ANSI_YELLOW, "Message {} not delivered", (Supplier<String>) () -> new String(undeliveredMessage.getBody()));
+            });
+
+            // Personal building queue, messages that keep failing end up in the dead letter queue
+            channel.queueDeclare(consumerName, false, false, false, AckManager.deadLetterArguments(channel));
+            channel.exchangeDeclare(EXCHANGE_BUILDINGS, BuiltinExchangeType.DIRECT);
+            channel.queueBind(consumerName, EXCHANGE_BUILDINGS, consumerName);
 
             // Buildings ping alive
-            channel.exchangeDeclare(EXCHANGE_PING_ALIVE_BUILDINGS, BuiltinExchangeType.FANOUT, false);
+            channel.exchangeDeclare(EXCHANGE_PING_ALIVE_BUILDINGS, BuiltinExchangeType.FANOUT);
 
             // Building replies to rental agents
-            channel.exchangeDeclare(EXCHANGE_BUILDINGS_REPLIES, BuiltinExchangeType.DIRECT, false);
+            channel.exchangeDeclare(EXCHANGE_BUILDINGS_REPLIES, BuiltinExchangeType.DIRECT);
+
+            // Copies of direct replies for rental agents that observe them
+            channel.exchangeDeclare(EXCHANGE_REPLIES_TAP, BuiltinExchangeType.FANOUT);
+
+            Log.info(ANSI_RESET, "Welcome to {}!", consumerName);
 
-            System.out.println("Welcome to " + consumerName + "!");
+            recover();
 
             pingAlive();
+            holds.start(scheduler);
             buildingConsume();
 
             // this thing is a "shutdown hook". its being executed before System.exit() when terminating the process.
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 try {
-                    AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
-                            .headers(Map.of("class", "BuildingDeath"))
-                            .build();
-                    byte[] message = mapper.writeValueAsBytes(consumerName);
-                    channel.basicPublish(EXCHANGE_PING_ALIVE_BUILDINGS, "", props, message);
+                    stop();
                 } catch (IOException e) {
-                    System.err.println("Failed to execute shutdown hook");
+                    Log.error(ANSI_RED, "Failed to execute shutdown hook");
                     System.exit(400);
                 }
             }));
 
-        } catch (IOException | TimeoutException err) {
+        } catch (IOException err) {
             throw new RuntimeException(err);
         }
     }
 
-    private void pingAlive() {
-        Timer t = new Timer();
-        t.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    ReplyBuildingPing replyBuildingPing = new ReplyBuildingPing(consumerName);
-                    byte[] bytes = mapper.writeValueAsBytes(replyBuildingPing);
+    // Recovers the reservations of a building of the host. The host consumes, pings and ticks for it.
+    void startHosted(String name) throws IOException {
+        consumerName = name;
+        reservationIds = ReservationIdGenerator.forBuilding(consumerName);
+        publishers = host.publishers();
+        metrics = host.metrics();
+        duplicates = host.duplicates();
+        recover();
+    }
 
-                    AMQP.BasicProperties pingAliveProps = new AMQP.BasicProperties.Builder()
-                            .headers(Map.of("class", "ReplyBuildingPing"))
-                            .build();
+    // tells the rental agents the building is gone and closes the journal
+    void stop() throws IOException {
+        byte[] message = codec.encode(consumerName);
+        publishers.publish(EXCHANGE_PING_ALIVE_BUILDINGS, "", MessageTemplates.of(BUILDING_DEATH, codec), message);
+        if (journal != null) journal.close();
+    }
 
-                    channel.basicPublish(EXCHANGE_PING_ALIVE_BUILDINGS, "", pingAliveProps, bytes);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-        }, 0, 5000);
+    String name() {
+        return consumerName;
     }
 
-    private void buildingConsume() throws IOException {
-        channel.basicConsume(consumerName, false, getDeliveryCallback(), ignore -> {
-        });
+    // expires the holds that are due, the host calls it for its buildings from one timer
+    void advanceHolds() {
+        holds.advance();
+    }
+
+    int heldReservations() {
+        return reservations.heldCount();
+    }
+
+    int availableRooms() {
+        return calendar.available();
+    }
+
+    private void startMetrics() {
+        metrics = new Metrics("Building", consumerName, "receive->ack")
+                .gauge("rooms.available", calendar::available)
+                .gauge("reservations.held", reservations::heldCount)
+                .gauge("reservations.confirmed", reservations::confirmedCount)
+                .gauge("dedup.size", handled::size)
+                .gauge("log.dropped", Log::dropped);
+        duplicates = metrics.counter("duplicates");
+        if (METRICS_JMX) metrics.registerMBean();
+        metrics.dumpEvery(scheduler, METRICS_DUMP_MS);
     }
 
-    private DeliverCallback getDeliveryCallback() {
-        return (consumerTag, delivery) -> {
+    // Loads the reservations of a previous run from the latest snapshot and the journal after it
+    private void recover() throws IOException {
+        if (JOURNAL_DIR.isEmpty()) return;
+
+        long started = System.nanoTime();
+        journal = ReservationJournal.open(Path.of(JOURNAL_DIR, consumerName), reservations, JOURNAL_CHUNK_MB << 20, JOURNAL_WAIT_FOR_SYNC);
+        // the journal doesn't keep when a hold was made, so recovered holds get a fresh ttl
+        reservations.forEach(reservation -> {
+            reservationIds.skipPast(reservation.reservationNumber());
+            if (reservation.state() == State.HOLD) holds.schedule(reservation.reservationNumber(), HOLD_TTL_MS);
+            rememberReply(reservation);
+        });
+        Log.info(ANSI_CYAN, "Recovered {} reservations in {} ms. {} rooms are available", reservations.size(), (System.nanoTime() - started) / 1_000_000, calendar.available());
+
+        scheduler.scheduleAtFixedRate(() -> {
             try {
-                if (delivery.getProperties().getHeaders() != null) {
-                    String clazz = delivery.getProperties().getHeaders().get("class").toString();
-                    switch (clazz) {
-                        case "RequestRoomReservation" -> makeReservation(consumerTag, delivery);
-                        case "RequestConfirmReservation" -> confirmReservation(consumerTag, delivery);
-                        case "RequestCancelReservation" -> cancelReservation(consumerTag, delivery);
-                        default -> throw new IllegalArgumentException("Unknown class header " + clazz);
-                    }
-                } else {
-                    System.out.println("Received a message without header, further action unknown");
-                }
-            } catch (Exception err) {
-                System.err.println("An error occurred before acknowledging: " + err.fillInStackTrace());
-            } finally {
-                try {
-                    channel.basicAck(delivery.getEnvelope().getDeliveryTag(), true);
-                } catch (IOException e) {
-                    System.err.println("Failed to acknowledge message: " + e.getMessage());
-                }
+                journal.snapshot();
+            } catch (IOException e) {
+                // the journal keeps everything until the next snapshot works
+                Log.error(ANSI_RED, "Failed to snapshot reservations: {}", e.getMessage());
             }
-        };
+        }, JOURNAL_SNAPSHOT_MS, JOURNAL_SNAPSHOT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // A request whose hold made it to disk may still be redelivered, when the building went down before the ack.
+    // The dedup cache gets its reply again, so the request isn't handled twice after the restart. A confirmed
+    // reservation only needs the request marked handled, the customer got its number.
+    private void rememberReply(ReservationStore.Reservation reservation) {
+        Origin origin = reservation.origin();
+        if (origin.requestId() == null) return;
+        if (reservation.state() != State.HOLD || origin.replyTo() == null) {
+            handled.put(origin.requestId(), DedupCache.HANDLED);
+            return;
+        }
+        String reservationNumber = ReservationNumber.format(consumerName, reservation.reservationNumber());
+        AMQP.BasicProperties props = MessageTemplates.of(REPLY_ROOM_RESERVATION, codec, origin.replyTo(), origin.requestId());
+        try {
+            handled.put(origin.requestId(), replyFor(props, codec.encode(new ReplyRoomReservation(reservationNumber, consumerName))));
+        } catch (IOException e) {
+            handled.put(origin.requestId(), DedupCache.HANDLED);
+        }
     }
 
-    private void makeReservation(String tag, Delivery delivery) throws IOException {
-        coloredPrint(ANSI_CYAN, "Received a requests for room reservation. Current number of available rooms is " + availableRooms);
+    // the reply goes out only once the change is on disk, other consumers share the same fsync
+    private void syncJournal() throws IOException {
+        if (journal != null) journal.sync();
+    }
 
-        RequestRoomReservation receivedMessage = mapper.readValue(delivery.getBody(), RequestRoomReservation.class);
-        String customerName = delivery.getProperties().getReplyTo();
+    private void pingAlive() {
+        scheduler.scheduleAtFixedRate(this::ping, 0, BUILDING_PING_MS, TimeUnit.MILLISECONDS);
+    }
 
-        if (receivedMessage.rooms() > availableRooms) {
-            // send an error message, rental agent handles all error messages the same.
-            sendErrorMessage(delivery, consumerName + " doesn't have " + receivedMessage.rooms() + " available rooms. Only " + availableRooms + " rooms are available");
+    // The ping tells the rental agents how many rooms are free on every night left, what an undated reservation
+    // can get, they turn away undated reservations that can't fit. An early ping that was asked for is covered by it.
+    ReplyBuildingPing currentPing() {
+        pingPending.set(false);
+        return new ReplyBuildingPing(consumerName, calendar.available(), calendar.capacity(), pingVersion.incrementAndGet());
+    }
+
+    private void ping() {
+        try {
+            byte[] bytes = codec.encode(currentPing());
+
+            publishers.publish(EXCHANGE_PING_ALIVE_BUILDINGS, "", MessageTemplates.of(REPLY_BUILDING_PING, codec), bytes);
+        } catch (IOException e) {
+            // keep pinging, the next ping may get through
+            Log.error(ANSI_RED, "Failed to ping: {}", e.getMessage());
+        }
+    }
+
+    // Rooms were given back. Until the agents hear about it they may still turn away requests that would fit now,
+    // so the next ping goes out soon instead of at the next tick. Releases in the meantime share that ping.
+    private void pingSoon() {
+        if (AVAILABILITY_PING_MS < 0 || !pingPending.compareAndSet(false, true)) return;
+        // the host sends it with the early pings of its other buildings
+        if (host != null) {
+            host.pingSoon(this);
             return;
         }
+        scheduler.schedule(this::ping, AVAILABILITY_PING_MS, TimeUnit.MILLISECONDS);
+    }
 
-        AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
-                .headers(Map.of("class", "ReplyRoomReservation"))
-                .replyTo(delivery.getProperties().getReplyTo())
-                .build();
+    private void buildingConsume() throws IOException {
+        // several consumers on the same queue, each on its own channel, so requests are handled in parallel
+        for (int i = 0; i < BUILDING_CONSUMERS; i++) {
+            MessageChannel consumerChannel = transport.createChannel();
+            consumerChannel.basicQos(PREFETCH);
+            AckManager acks = new AckManager(consumerChannel, ACK_BATCH_SIZE).start(scheduler, ACK_WINDOW_MS);
+            consumerChannel.basicConsume(consumerName, false, getDeliveryCallback(acks));
+        }
+        metrics.queueDepth(consumerName, channel);
+    }
 
-        Random rand = new Random();
-        String reservationNumber = String.format("%04d", rand.nextInt(10000));
-        ReplyRoomReservation data = new ReplyRoomReservation(reservationNumber, receivedMessage.buildingId());
-        byte[] deliverMessage = mapper.writeValueAsBytes(data);
+    private DeliverCallback getDeliveryCallback(AckManager acks) {
+        return (consumerTag, delivery) -> handle(consumerTag, delivery, acks);
+    }
 
-        if (!requestedReservations.add(new Reservation(customerName, reservationNumber, receivedMessage.rooms()))) {
-            coloredPrint(ANSI_BLUE, "A DUPLICATE RESERVATION NUMBER HAS BEEN CREATED, TRYING RESERVATION CREATION AGAIN");
-            makeReservation(tag, delivery);
+    // handles a request and acks it, on the consumer's thread, the host hands over the requests of its buildings here
+    void handle(String consumerTag, Delivery delivery, AckManager acks) {
+        long started = System.nanoTime();
+        MessageType type = null;
+        try {
+            type = MessageType.of(delivery.getProperties());
+            metrics.received(type);
+            String messageId = delivery.getProperties().getMessageId();
+            DedupCache.Reply reply = messageId == null ? null : handled.get(messageId);
+            if (reply != null) {
+                duplicates.increment();
+                Log.debug(ANSI_YELLOW, "Received message {} again, repeating the reply", messageId);
+                if (!reply.isEmpty()) publishers.publish(reply.exchange(), reply.routingKey(), reply.props(), reply.body());
+            } else if (!dispatcher.dispatch(consumerTag, delivery)) {
+                Log.warn(ANSI_YELLOW, "Received a message without header, further action unknown");
+            } else if (messageId != null) {
+                handled.put(messageId, DedupCache.HANDLED);
+            }
+            acks.ack(delivery);
+            metrics.completed(type, started);
+        } catch (Exception err) {
+            metrics.failed(type);
+            Log.error(ANSI_RED, "An error occurred before acknowledging: {}", err);
+            acks.fail(delivery);
         }
-
-        channel.queueBind(consumerName, EXCHANGE_RENTAL_AGENTS_REQUESTS, reservationNumber);
-        channel.basicPublish(EXCHANGE_BUILDINGS_REPLIES, KEY_BUILDINGS_REPLIES, props, deliverMessage);
     }
 
-    private void confirmReservation(String tag, Delivery delivery) throws IOException {
-        RequestConfirmReservation receivedMessage = mapper.readValue(delivery.getBody(), RequestConfirmReservation.class);
-        coloredPrint(ANSI_GREEN, "Received a confirmation of reservation. Reservation number " + receivedMessage.reservationNumber());
+    private void makeReservation(String tag, Delivery delivery, RequestRoomReservation receivedMessage) throws IOException {
+        Log.debug(ANSI_CYAN, "Received a requests for room reservation. Current number of available rooms is {}", (Supplier<Integer>) calendar::available);
 
-        Reservation reservation = requestedReservations.stream()
-                .filter(el -> el.reservationNumber.equals(receivedMessage.reservationNumber()))
-                .findFirst()
-                .orElse(null);
+        MessageCodec replyCodec = MessageCodecs.of(delivery.getProperties());
+        String customerName = MessageTemplates.senderOf(delivery.getProperties());
 
-        if (reservation == null) {
-            // send an error message, rental agent handles all error messages the same.
-            sendErrorMessage(delivery, "Your reservation is not present in the list of reservation list of building " + consumerName + ". THere is nothing to confirm. If you think that something is not right, contact our customer support.");
+        if (receivedMessage.rooms() <= 0) {
+            sendErrorMessage(delivery, "You have to reserve at least one room");
             return;
         }
 
-        if (!reservation.customerName.equals(delivery.getProperties().getReplyTo())) {
+        // an undated reservation takes the rooms for every night of the calendar
+        int checkIn = RoomCalendar.OPEN_START, checkOut = RoomCalendar.OPEN_END;
+        if (receivedMessage.checkIn() != null || receivedMessage.checkOut() != null) {
+            try {
+                checkIn = (int) LocalDate.parse(String.valueOf(receivedMessage.checkIn())).toEpochDay();
+                checkOut = (int) LocalDate.parse(String.valueOf(receivedMessage.checkOut())).toEpochDay();
+            } catch (DateTimeParseException e) {
+                sendErrorMessage(delivery, "Check-in and check-out have to be dates like 2026-10-16, got " + receivedMessage.checkIn() + " and " + receivedMessage.checkOut());
+                return;
+            }
+            String invalid = checkOut <= checkIn ? "Check-out has to be after check-in"
+                    : checkIn < RoomCalendar.today() ? "Check-in can't be in the past"
+                    : checkOut > calendar.endDay() ? consumerName + " takes bookings up to " + LocalDate.ofEpochDay(calendar.endDay())
+                    : null;
+            if (invalid != null) {
+                sendErrorMessage(delivery, invalid);
+                return;
+            }
+        }
+
+        AMQP.BasicProperties props = MessageTemplates.of(REPLY_ROOM_RESERVATION, replyCodec, delivery.getProperties().getReplyTo(), delivery.getProperties().getMessageId());
+
+        // a customer that doesn't reply to a queue of its own name is told about the expiry at its address,
+        // a reservation the rental agent makes for a customer names the customer's address in a header.
+        // The request's id and reply-to are journaled with the hold, so a redelivery after a restart is answered too.
+        String customerReplyTo = MessageTemplates.customerReplyTo(delivery.getProperties());
+        Origin origin = new Origin(delivery.getProperties().getMessageId(), delivery.getProperties().getReplyTo(),
+                customerReplyTo == null || customerName.equals(customerReplyTo) ? null : customerReplyTo);
+
+        // The rooms are taken right away and held for the customer until they confirm or the hold runs out
+        long reservationId = reservationIds.nextId();
+        switch (reservations.hold(reservationId, customerName, receivedMessage.rooms(), checkIn, checkOut, origin)) {
+            case NO_ROOMS -> {
+                // send an error message, rental agent handles all error messages the same.
+                String nights = receivedMessage.checkIn() == null ? "" : " from " + receivedMessage.checkIn() + " to " + receivedMessage.checkOut();
+                sendErrorMessage(delivery, consumerName + " doesn't have " + receivedMessage.rooms() + " available rooms" + nights + ". Only " + calendar.available(checkIn, checkOut) + " rooms are available");
+                return;
+            }
+            // the generator never repeats an id, so there is nothing to retry here
+            case ILLEGAL_STATE -> throw new IllegalStateException("Reservation id " + reservationId + " was handed out twice");
+        }
+        holds.schedule(reservationId, HOLD_TTL_MS);
+        syncJournal();
+
+        String reservationNumber = ReservationNumber.format(consumerName, reservationId);
+        ReplyRoomReservation data = new ReplyRoomReservation(reservationNumber, receivedMessage.buildingId());
+        byte[] deliverMessage = replyCodec.encode(data);
+
+        reply(delivery, props, deliverMessage);
+    }
+
+    private void confirmReservation(String tag, Delivery delivery, RequestConfirmReservation receivedMessage) throws IOException {
+        MessageCodec replyCodec = MessageCodecs.of(delivery.getProperties());
+        Log.debug(ANSI_GREEN, "Received a confirmation of reservation. Reservation number {}", receivedMessage.reservationNumber());
+
+        Transition transition = reservations.transition(ReservationNumber.parse(receivedMessage.reservationNumber()), MessageTemplates.senderOf(delivery.getProperties()), State.CONFIRMED);
+
+        switch (transition.outcome()) {
+            // send an error message, rental agent handles all error messages the same.
+            case NOT_FOUND -> {
+                sendErrorMessage(delivery, "Your reservation is not present in the list of reservation list of building " + consumerName + ", or it wasn't confirmed in time. THere is nothing to confirm. If you think that something is not right, contact our customer support.");
+                return;
+            }
             // only the customer that made the reservation can confirm it
-            sendErrorMessage(delivery, "You were not the one who made this reservation, thus you cannot confirm it");
-            return;
+            case NOT_OWNER -> {
+                sendErrorMessage(delivery, "You were not the one who made this reservation, thus you cannot confirm it");
+                return;
+            }
+            case ILLEGAL_STATE -> {
+                sendErrorMessage(delivery, "Reservation " + receivedMessage.reservationNumber() + " is already confirmed");
+                return;
+            }
         }
 
-        requestedReservations.remove(reservation);
-        availableRooms -= reservation.numberOfRooms;
-        confirmedReservations.add(reservation);
+        syncJournal();
 
-        AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
-                .headers(Map.of("class", "ReplyConfirmReservation"))
-                .replyTo(delivery.getProperties().getReplyTo()).build();
+        AMQP.BasicProperties props = MessageTemplates.of(REPLY_CONFIRM_RESERVATION, replyCodec, delivery.getProperties().getReplyTo(), delivery.getProperties().getMessageId());
 
-        channel.queueUnbind(consumerName, EXCHANGE_RENTAL_AGENTS_REQUESTS, receivedMessage.reservationNumber());
-        byte[] deliverMessage = mapper.writeValueAsBytes(new ReplyConfirmReservation(reservation.reservationNumber, consumerName));
+        byte[] deliverMessage = replyCodec.encode(new ReplyConfirmReservation(receivedMessage.reservationNumber(), consumerName));
 
-        channel.basicPublish(EXCHANGE_BUILDINGS_REPLIES, KEY_BUILDINGS_REPLIES, props, deliverMessage);
+        reply(delivery, props, deliverMessage);
     }
 
-    private void cancelReservation(String tag, Delivery delivery) throws IOException {
-        RequestCancelReservation receivedMessage = mapper.readValue(delivery.getBody(), RequestCancelReservation.class);
-        coloredPrint(ANSI_GREEN, "Received a requests for room cancellation. Reservation number " + receivedMessage.reservationNumber());
+    private void cancelReservation(String tag, Delivery delivery, RequestCancelReservation receivedMessage) throws IOException {
+        MessageCodec replyCodec = MessageCodecs.of(delivery.getProperties());
+        Log.debug(ANSI_GREEN, "Received a requests for room cancellation. Reservation number {}", receivedMessage.reservationNumber());
 
-        Reservation unconfirmedReservation = requestedReservations.stream()
-                .filter(el -> el.reservationNumber.equals(receivedMessage.reservationNumber()))
-                .findFirst()
-                .orElse(null);
+        Transition transition = reservations.transition(ReservationNumber.parse(receivedMessage.reservationNumber()), MessageTemplates.senderOf(delivery.getProperties()), State.CANCELLED);
 
-        Reservation confirmedReservation = confirmedReservations.stream()
-                .filter(el -> el.reservationNumber.equals(receivedMessage.reservationNumber()))
-                .findFirst()
-                .orElse(null);
-
-        // Cancel reservation exists
-        if (confirmedReservation == null && unconfirmedReservation == null) {
-            sendErrorMessage(delivery, "Reservation you are trying to cancel was not found. Check your reservation number for validity");
-            return;
+        switch (transition.outcome()) {
+            // Cancel reservation exists
+            case NOT_FOUND, ILLEGAL_STATE -> {
+                sendErrorMessage(delivery, "Reservation you are trying to cancel was not found. Check your reservation number for validity");
+                return;
+            }
+            // Confirms that its not another user trying to cancel another's reservation
+            case NOT_OWNER -> {
+                sendErrorMessage(delivery, "You were not the one who made this reservation, thus you cannot cancel it");
+                return;
+            }
         }
 
-        // Checks below confirm that its not another user trying to cancel another's reservation
-        if (confirmedReservation != null && !confirmedReservation.customerName.equals(delivery.getProperties().getReplyTo())) {
-            sendErrorMessage(delivery, "You were not the one who made this reservation, thus you cannot cancel it");
-            return;
-        }
-        if (unconfirmedReservation != null && !unconfirmedReservation.customerName.equals(delivery.getProperties().getReplyTo())) {
-            sendErrorMessage(delivery, "You were not the one who made this reservation, thus you cannot cancel it");
-            return;
-        }
+        syncJournal();
+        pingSoon();
 
-        AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
-                .headers(Map.of("class", "ReplyCancelReservation"))
-                .replyTo(delivery.getProperties().getReplyTo()).build();
+        AMQP.BasicProperties props = MessageTemplates.of(REPLY_CANCEL_RESERVATION, replyCodec, delivery.getProperties().getReplyTo(), delivery.getProperties().getMessageId());
 
-        byte[] deliverMessage = new byte[0];
+        byte[] deliverMessage;
 
         // Determine is it confirmed on an unconfirmed reservation being canceled
-        if (unconfirmedReservation != null) {
-            requestedReservations.remove(unconfirmedReservation);
-            deliverMessage = mapper.writeValueAsBytes(new ReplyCancelReservation(unconfirmedReservation.reservationNumber, " An unconfirmed reservation has been successfully canceled"));
+        if (transition.from() == State.CONFIRMED) {
+            deliverMessage = replyCodec.encode(new ReplyCancelReservation(receivedMessage.reservationNumber(), " A confirmed reservation has been successfully canceled." + calendar.available() + " are now available at " + consumerName));
+        } else {
+            deliverMessage = replyCodec.encode(new ReplyCancelReservation(receivedMessage.reservationNumber(), " An unconfirmed reservation has been successfully canceled"));
         }
-        if (confirmedReservation != null) {
-            availableRooms += confirmedReservation.numberOfRooms;
-            confirmedReservations.remove(confirmedReservation);
-            deliverMessage = mapper.writeValueAsBytes(new ReplyCancelReservation(confirmedReservation.reservationNumber, " A confirmed reservation has been successfully canceled." + availableRooms + " are now available at " + consumerName));
+
+        reply(delivery, props, deliverMessage);
+    }
+
+    // Called by the timing wheel when a hold runs out. Holds that were confirmed or cancelled in time are left alone.
+    private void expireHold(long reservationId) {
+        ReservationStore.Reservation expired = reservations.expire(reservationId);
+        if (expired == null) return;
+
+        String reservationNumber = ReservationNumber.format(consumerName, reservationId);
+        Log.debug(ANSI_YELLOW, "Reservation {} wasn't confirmed in time. {} rooms are available again", reservationNumber, (Supplier<Integer>) calendar::available);
+        pingSoon();
+
+        // the customer hears about it like about any other reply
+        try {
+            AMQP.BasicProperties props = MessageTemplates.of(REPLY_RESERVATION_EXPIRED, codec, expired.expiryAddress());
+            byte[] deliverMessage = codec.encode(new ReplyReservationExpired(reservationNumber, consumerName));
+            sendToCustomer(props, deliverMessage);
+        } catch (IOException e) {
+            Log.error(ANSI_RED, "Failed to notify {} about expired reservation {}", expired.customerName(), reservationNumber);
         }
+    }
 
-        channel.queueUnbind(consumerName, EXCHANGE_RENTAL_AGENTS_REQUESTS, receivedMessage.reservationNumber());
-        channel.basicPublish(EXCHANGE_BUILDINGS_REPLIES, KEY_BUILDINGS_REPLIES, props, deliverMessage);
+    // replies to the request and remembers the reply in case the request is delivered again
+    private void reply(Delivery request, AMQP.BasicProperties props, byte[] body) throws IOException {
+        DedupCache.Reply reply = sendToCustomer(props, body);
+        String messageId = request.getProperties().getMessageId();
+        if (messageId != null) handled.put(messageId, reply);
     }
 
-    private void sendErrorMessage(Delivery delivery, String message) throws IOException {
-        AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
-                .headers(Map.of("class", "ReplyExecutionError"))
-                .replyTo(delivery.getProperties().getReplyTo()).build();
+    private DedupCache.Reply sendToCustomer(AMQP.BasicProperties props, byte[] body) throws IOException {
+        return sendToCustomer(publishers, props, body);
+    }
 
-        byte[] deliverMessage = mapper.writeValueAsBytes(new ReplyExecutionError(message));
+    // Relayed by the rental agents, or with direct replies straight to the customer's queue, one hop less.
+    // The tap gives rental agents a copy of direct replies to observe. A host replies the same way for buildings it lost.
+    static DedupCache.Reply sendToCustomer(ChannelPool publishers, AMQP.BasicProperties props, byte[] body) throws IOException {
+        DedupCache.Reply reply = replyFor(props, body);
+        publishers.publish(reply.exchange(), reply.routingKey(), props, body);
+        if (DIRECT_REPLIES && REPLY_TAP) publishers.publish(EXCHANGE_REPLIES_TAP, "", props, body);
+        return reply;
+    }
 
-        channel.basicPublish(EXCHANGE_BUILDINGS_REPLIES, KEY_BUILDINGS_REPLIES, props, deliverMessage);
+    private static DedupCache.Reply replyFor(AMQP.BasicProperties props, byte[] body) {
+        return DIRECT_REPLIES
+                ? new DedupCache.Reply("", props.getReplyTo(), false, props, body)
+                : new DedupCache.Reply(EXCHANGE_BUILDINGS_REPLIES, KEY_BUILDINGS_REPLIES, false, props, body);
     }
 
-    record Reservation(String customerName, String reservationNumber, int numberOfRooms) {
-        @Override
-        public boolean equals(Object obj) {
-            if (!(obj instanceof Reservation)) return false;
-            return ((Reservation) obj).reservationNumber.equals(this.reservationNumber);
-        }
+    private void sendErrorMessage(Delivery delivery, String message) throws IOException {
+        MessageCodec replyCodec = MessageCodecs.of(delivery.getProperties());
+        AMQP.BasicProperties props = MessageTemplates.of(REPLY_EXECUTION_ERROR, replyCodec, delivery.getProperties().getReplyTo(), delivery.getProperties().getMessageId());
 
-        @Override
-        public int hashCode() {
-            int multiplier = 31;
-            int result = 1;
-            result = result * multiplier + this.reservationNumber.hashCode();
-            result = result * multiplier + this.customerName.hashCode();
-            return result;
-        }
+        byte[] deliverMessage = replyCodec.encode(new ReplyExecutionError(message));
+
+        reply(delivery, props, deliverMessage);
+        metrics.errorReply();
     }
 }
\ No newline at end of file
@@ -0,0 +1,284 @@
+package src;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Delivery;
+import src.codec.MessageCodec;
+import src.codec.MessageCodecs;
+import src.logging.Log;
+import src.messages.MessageTemplates;
+import src.messages.ReplyBuildingPing;
+import src.messages.ReplyBuildingPings;
+import src.messages.ReplyExecutionError;
+import src.metrics.Metrics;
+import src.runtime.AckManager;
+import src.runtime.ChannelPool;
+import src.runtime.DedupCache;
+import src.runtime.ExecutionMode;
+import src.transport.MessageChannel;
+import src.transport.Transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static src.messages.MessageType.*;
+import static src.utils.Common.*;
+import static src.utils.Config.*;
+import static src.utils.ANSIColors.*;
+
+// Thousands of buildings in one process. On its own every building has a connection, a queue with its consumers,
+// a timer thread, a dedup cache and a ping every few seconds, so the broker's connections and queues and the
+// process's threads and memory grow with the buildings. A host has one connection for all of them:
+// - requests come in on HOST_SHARDS queues, EXCHANGE_BUILDINGS routes every building's name to one of them,
+//   and the shard's consumer hands the request to the building it names
+// - replies go out on a pool of HOST_PUBLISH_CHANNELS channels
+// - one timer pings for all buildings, HOST_PING_BATCH pings to a message, and advances their holds
+// - the dedup cache and the metrics are shared, message ids are unique across buildings
+// Rental agents and customers can't tell a hosted building from one on its own.
+public class BuildingHost {
+    // RabbitMQ, or the broker inside this JVM
+    private Transport transport;
+    // declares the topology and binds the buildings to their shard
+    private MessageChannel channel;
+    private ChannelPool publishers;
+    // platform or virtual threads for callbacks and timers
+    private final ExecutionMode execution = ExecutionMode.byName(THREADS);
+    private final ScheduledExecutorService scheduler = execution.newScheduler("host-timer");
+    private final MessageCodec codec = MessageCodecs.configured();
+    private String hostName = "";
+    // queues the requests of the buildings come in on
+    private String[] shards;
+    private final Map<String, Building> buildings = new ConcurrentHashMap<>();
+    // buildings that gave rooms back, they ping together with the next early batch
+    private final Queue<Building> pingSoon = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean pingSoonPending = new AtomicBoolean();
+    // replies to recent requests of all buildings
+    private final DedupCache handled = new DedupCache(DEDUP_SIZE, DEDUP_TTL_MS);
+    // counts and times the requests of all buildings from delivery to ack
+    private Metrics metrics;
+    private LongAdder duplicates;
+    private LongAdder unknown;
+
+    public static void main(String[] args) {
+        Random rand = new Random();
+        String name = args.length > 0 ? args[0] : "BuildingHost" + rand.nextInt(100);
+        int buildingCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int rooms = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        BuildingHost host = new BuildingHost();
+        host.run(name);
+        // a host that restarts under its old name brings its buildings back under theirs
+        for (int i = 0; i < buildingCount; i++) host.add(name + "Building" + i, rooms);
+        Log.info(ANSI_RESET, "{} hosts {} buildings", name, buildingCount);
+    }
+
+    public void run(String name) {
+        try {
+            run(name, Transport.connect(name, execution));
+        } catch (IOException | TimeoutException err) {
+            throw new RuntimeException(err);
+        }
+    }
+
+    public void run(String name, Transport transport) {
+        try {
+            hostName = name;
+            this.transport = transport;
+            execution.reportThreads(scheduler, THREADS_REPORT_MS);
+            channel = transport.createChannel();
+            startMetrics();
+            publishers = new ChannelPool(transport, HOST_PUBLISH_CHANNELS, (undeliveredMessage) -> {
+                metrics.returned();
+                Log.warn(ANSI_YELLOW, "Message {} not delivered", (Supplier<String>) () -> new String(undeliveredMessage.getBody()));
+            });
+
+            channel.exchangeDeclare(EXCHANGE_BUILDINGS, BuiltinExchangeType.DIRECT);
+            channel.exchangeDeclare(EXCHANGE_PING_ALIVE_BUILDINGS, BuiltinExchangeType.FANOUT);
+            channel.exchangeDeclare(EXCHANGE_BUILDINGS_REPLIES, BuiltinExchangeType.DIRECT);
+            channel.exchangeDeclare(EXCHANGE_REPLIES_TAP, BuiltinExchangeType.FANOUT);
+
+            // Shard queues, messages that keep failing end up in the dead letter queue
+            Map<String, Object> deadLetters = AckManager.deadLetterArguments(channel);
+            shards = new String[Math.max(1, HOST_SHARDS)];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = hostName + "-shard-" + i;
+                channel.queueDeclare(shards[i], false, false, false, deadLetters);
+            }
+
+            Log.info(ANSI_RESET, "Welcome to {}!", hostName);
+
+            scheduler.scheduleAtFixedRate(this::pingAll, 0, BUILDING_PING_MS, TimeUnit.MILLISECONDS);
+            scheduler.scheduleAtFixedRate(this::advanceHolds, HOLD_TICK_MS, HOLD_TICK_MS, TimeUnit.MILLISECONDS);
+            shardConsume();
+
+            Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+        } catch (IOException err) {
+            throw new RuntimeException(err);
+        }
+    }
+
+    // Starts a building, it recovers its reservations first and gets requests once it is bound to its shard.
+    // Synchronized so a second building of the same name is turned away before it opens the journal of the first.
+    public synchronized void add(String buildingId, int availableRooms) {
+        if (buildings.containsKey(buildingId)) throw new IllegalArgumentException(hostName + " already hosts " + buildingId);
+        try {
+            Building building = new Building(availableRooms, this);
+            building.startHosted(buildingId);
+            buildings.put(buildingId, building);
+            channel.queueBind(shardOf(buildingId), EXCHANGE_BUILDINGS, buildingId);
+        } catch (IOException err) {
+            throw new RuntimeException(err);
+        }
+    }
+
+    public int size() {
+        return buildings.size();
+    }
+
+    // Takes the buildings off their shards, tells the rental agents they are gone and closes their journals.
+    // The shard queues are kept, a host that restarts under the same name picks up what is left in them.
+    public void stop() {
+        for (Building building : buildings.values()) {
+            try {
+                channel.queueUnbind(shardOf(building.name()), EXCHANGE_BUILDINGS, building.name());
+                building.stop();
+            } catch (IOException e) {
+                Log.error(ANSI_RED, "Failed to stop {}: {}", building.name(), e.getMessage());
+            }
+        }
+    }
+
+    // WHAT THE BUILDINGS SHARE
+
+    ScheduledExecutorService scheduler() {
+        return scheduler;
+    }
+
+    DedupCache handled() {
+        return handled;
+    }
+
+    ChannelPool publishers() {
+        return publishers;
+    }
+
+    Metrics metrics() {
+        return metrics;
+    }
+
+    LongAdder duplicates() {
+        return duplicates;
+    }
+
+    // The building gave rooms back. Buildings that do so within AVAILABILITY_PING_MS of each other ping together.
+    void pingSoon(Building building) {
+        pingSoon.add(building);
+        if (!pingSoonPending.compareAndSet(false, true)) return;
+        scheduler.schedule(() -> {
+            pingSoonPending.set(false);
+            List<ReplyBuildingPing> pings = new ArrayList<>();
+            for (Building next; (next = pingSoon.poll()) != null; ) {
+                pings.add(next.currentPing());
+                if (pings.size() == HOST_PING_BATCH) pings = ping(pings);
+            }
+            ping(pings);
+        }, AVAILABILITY_PING_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void startMetrics() {
+        metrics = new Metrics("BuildingHost", hostName, "receive->ack")
+                .gauge("buildings", buildings::size)
+                .gauge("rooms.available", () -> buildings.values().stream().mapToLong(Building::availableRooms).sum())
+                .gauge("reservations.held", () -> buildings.values().stream().mapToLong(Building::heldReservations).sum())
+                .gauge("dedup.size", handled::size)
+                .gauge("log.dropped", Log::dropped);
+        duplicates = metrics.counter("duplicates");
+        unknown = metrics.counter("unknown.building");
+        if (METRICS_JMX) metrics.registerMBean();
+        metrics.dumpEvery(scheduler, METRICS_DUMP_MS);
+    }
+
+    // a building always goes to the same shard, so its requests keep their order
+    private String shardOf(String buildingId) {
+        int hash = buildingId.hashCode();
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+    }
+
+    private void shardConsume() throws IOException {
+        // one consumer per shard, each on its own channel, so the shards are handled in parallel
+        for (String shard : shards) {
+            MessageChannel consumerChannel = transport.createChannel();
+            consumerChannel.basicQos(PREFETCH);
+            AckManager acks = new AckManager(consumerChannel, ACK_BATCH_SIZE).start(scheduler, ACK_WINDOW_MS);
+            consumerChannel.basicConsume(shard, false, (consumerTag, delivery) -> dispatch(consumerTag, delivery, acks));
+            metrics.queueDepth(shard, channel);
+        }
+    }
+
+    // the routing key the request was published with names its building
+    private void dispatch(String consumerTag, Delivery delivery, AckManager acks) {
+        Building building = buildings.get(delivery.getEnvelope().getRoutingKey());
+        if (building == null) {
+            // bound by an earlier run of the host, the building isn't hosted anymore
+            unknown.increment();
+            Log.warn(ANSI_YELLOW, "Received a message for {}, which isn't hosted here", delivery.getEnvelope().getRoutingKey());
+            try {
+                replyNotHosted(delivery);
+                acks.ack(delivery);
+            } catch (IOException | RuntimeException err) {
+                Log.error(ANSI_RED, "Failed to answer a message for {}: {}", delivery.getEnvelope().getRoutingKey(), err);
+                acks.fail(delivery);
+            }
+            return;
+        }
+        building.handle(consumerTag, delivery, acks);
+    }
+
+    // the customer gets an error reply, like from a building that turns the request down
+    private void replyNotHosted(Delivery delivery) throws IOException {
+        MessageCodec replyCodec = MessageCodecs.of(delivery.getProperties());
+        AMQP.BasicProperties props = MessageTemplates.of(REPLY_EXECUTION_ERROR, replyCodec, delivery.getProperties().getReplyTo(), delivery.getProperties().getMessageId());
+        String message = "Building " + delivery.getEnvelope().getRoutingKey() + " is not open anymore, your message was not handled";
+        Building.sendToCustomer(publishers, props, replyCodec.encode(new ReplyExecutionError(message)));
+        metrics.errorReply();
+    }
+
+    // the regular ping of every building, in batches
+    private void pingAll() {
+        List<ReplyBuildingPing> pings = new ArrayList<>();
+        for (Building building : buildings.values()) {
+            pings.add(building.currentPing());
+            if (pings.size() == HOST_PING_BATCH) pings = ping(pings);
+        }
+        ping(pings);
+    }
+
+    // sends the pings and returns an empty list for the next batch
+    private List<ReplyBuildingPing> ping(List<ReplyBuildingPing> pings) {
+        if (pings.isEmpty()) return pings;
+        try {
+            byte[] bytes = codec.encode(new ReplyBuildingPings(pings));
+            publishers.publish(EXCHANGE_PING_ALIVE_BUILDINGS, "", MessageTemplates.of(REPLY_BUILDING_PINGS, codec), bytes);
+        } catch (IOException e) {
+            // keep pinging, the next ping may get through
+            Log.error(ANSI_RED, "Failed to ping for {} buildings: {}", pings.size(), e.getMessage());
+        }
+        return new ArrayList<>();
+    }
+
+    private void advanceHolds() {
+        for (Building building : buildings.values()) building.advanceHolds();
+    }
+}
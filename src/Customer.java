@@ -1,26 +1,33 @@
 package src;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.rabbitmq.client.*;
-import src.messages.*;
+import src.client.RentalClient;
+import src.client.RentalException;
+import src.messages.ReplyBatchReservation;
+import src.messages.ReplyBuildingSearch;
+import src.messages.ReplyReservationExpired;
+import src.messages.ReplyRoomReservation;
 import src.utils.Menu;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
-import static src.utils.Common.*;
+import static src.utils.Config.*;
 import static src.utils.ANSIColors.*;
 
 
+// Interactive shell over the RentalClient. Replies are printed when they arrive, so the menu is free
+// for the next request while earlier ones are still on their way.
 public class Customer {
-    private ConnectionFactory factory;
-    private Connection connection;
-    private Channel channel;
-    private ObjectMapper mapper = new ObjectMapper();
-    private String consumerName;
+    // buildings per page of a search
+    private static final int SEARCH_PAGE_SIZE = 10;
 
+    private RentalClient client;
 
     public static void main(String[] args) {
         Random rand = new Random();
@@ -31,159 +38,107 @@ public class Customer {
 
     public void run(String name) {
         try {
-            consumerName = name;
-            factory = new ConnectionFactory();
-            connection = factory.newConnection();
-            channel = connection.createChannel();
-            channel.addReturnListener((undeliveredMessage) ->
-                    System.out.println("Message " + (new String(undeliveredMessage.getBody())) + " not delivered")
-            );
+            client = new RentalClient(name, CLIENT_DIRECT_REPLY_TO, CLIENT_TIMEOUT_MS).connect();
+            client.onExpiry(this::reservationExpired);
 
-            // PERSONAL CUSTOMER QUEUE
-            channel.queueDeclare(consumerName, false, false, false, null);
-
-            // CUSTOMER REQUEST
-            channel.exchangeDeclare(EXCHANGE_CUSTOMER_REQUEST, BuiltinExchangeType.DIRECT);
-
-            customerConsume();
-            printCustomerMenu();
+            while (true) {
+                printCustomerMenu();
+            }
 
         } catch (IOException | TimeoutException | IllegalStateException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private void customerConsume() throws IOException {
-        channel.basicConsume(consumerName, false, getDeliveryCallback(), ignore -> {
-        });
-    }
-
-    private DeliverCallback getDeliveryCallback() {
-        return (consumerTag, delivery) -> {
-            try {
-                // is null when no headers are provided, need to check for
-                // it not to be null because it crashes the whole thing.
-                if (delivery.getProperties().getHeaders() != null) {
-                    String clazz = delivery.getProperties().getHeaders().get("class").toString();
-                    switch (clazz) {
-                        case "ReplyRoomReservation" -> receiveMakeReservation(consumerTag, delivery);
-                        case "ReplyConfirmReservation" -> confirmReservation(consumerTag, delivery);
-                        case "ReplyCancelReservation" -> cancelReservation(consumerTag, delivery);
-                        case "ReplyBuildingsList" -> receiveBuildingsList(consumerTag, delivery);
-                        case "ReplyExecutionError" -> receiveErrorMessage(consumerTag, delivery);
-                        default -> throw new IllegalArgumentException("Unknown class header " + clazz);
-                    }
-                } else {
-                    System.out.println("Received a message without header, further action unknown");
-                }
-            } catch (Exception err) {
-                System.err.println("An error occurred before acknowledging: " + err.fillInStackTrace());
-            } finally {
-                try {
-                    channel.basicAck(delivery.getEnvelope().getDeliveryTag(), true);
-                    printCustomerMenu();
-                } catch (IOException e) {
-                    System.err.println("Failed to acknowledge message: " + e.getMessage());
-                }
-            }
-        };
-    }
-
-    private void receiveErrorMessage(String consumerTag, Delivery delivery) throws IOException {
-        ReplyExecutionError message = mapper.readValue(delivery.getBody(), ReplyExecutionError.class);
-
-        coloredPrint(ANSI_RED, "An error has occurred: " + message.errorMessage());
+    private void reservationExpired(ReplyReservationExpired message) {
+        coloredPrint(ANSI_YELLOW, "Your reservation " +
+                message.reservationNumber() +
+                " at " +
+                message.buildingId() +
+                " wasn't confirmed in time and has been released");
     }
 
-    private void cancelReservation(String consumerTag, Delivery delivery) throws IOException {
-        ReplyCancelReservation message = mapper.readValue(delivery.getBody(), ReplyCancelReservation.class);
-
-        coloredPrint(ANSI_CYAN, message.status());
+    private void requestBuildingsList() {
+        print(client.buildings(), buildingsList -> coloredPrint(ANSI_CYAN, "Received buildings list: " + buildingsList));
+        coloredPrint(ANSI_GREEN, "Sent a request for buildings list");
     }
 
-    private void confirmReservation(String consumerTag, Delivery delivery) throws IOException {
-        ReplyConfirmReservation message = mapper.readValue(delivery.getBody(), ReplyConfirmReservation.class);
-
-        coloredPrint(ANSI_CYAN, "Thank you for confirming your reservation at " +
-                message.buildingId() +
-                ". See you soon!");
+    private void requestBuildingSearch(int minRooms, int page) {
+        print(client.search(minRooms, SEARCH_PAGE_SIZE, page), reply -> {
+            StringBuilder found = new StringBuilder();
+            for (ReplyBuildingSearch.Match match : reply.buildings()) {
+                if (!found.isEmpty()) found.append(", ");
+                found.append(match.buildingId()).append(" (").append(match.freeRooms()).append(" free)");
+            }
+            coloredPrint(ANSI_CYAN, reply.matches() + " buildings have at least " + minRooms + " free rooms. Page " + (reply.page() + 1) + ": " + found);
+        });
+        coloredPrint(ANSI_GREEN, "Sent a search for buildings with at least " + minRooms + " free rooms");
     }
 
-    private void receiveMakeReservation(String consumerTag, Delivery delivery) throws IOException {
-        ReplyRoomReservation message = mapper.readValue(delivery.getBody(), ReplyRoomReservation.class);
-
-        coloredPrint(ANSI_CYAN, "Thank you for making a reservation at " +
+    // without dates the rooms are booked for good
+    private void requestRoomReservation(int numberOfRooms, String buildingId, LocalDate checkIn, LocalDate checkOut) {
+        CompletableFuture<ReplyRoomReservation> reply = checkIn == null
+                ? client.reserve(buildingId, numberOfRooms)
+                : client.reserve(buildingId, numberOfRooms, checkIn, checkOut);
+        print(reply, message -> coloredPrint(ANSI_CYAN, "Thank you for making a reservation at " +
                 message.buildingId() +
                 ". Your reservation number is " +
-                message.reservationNumber());
-    }
-
-    private void receiveBuildingsList(String tag, Delivery delivery) {
-        String buildingsList = new String(delivery.getBody(), StandardCharsets.UTF_8);
-        coloredPrint(ANSI_CYAN, "Received buildings list: " + buildingsList);
-    }
-
-    private void requestBuildingsList() throws IOException {
-        AMQP.BasicProperties props = new AMQP.BasicProperties
-                .Builder()
-                .headers(Map.of("class", "RequestBuildingsList"))
-                .replyTo(consumerName)
-                .build();
-
-        byte[] message = mapper.writeValueAsBytes(consumerName);
-        channel.basicPublish(EXCHANGE_CUSTOMER_REQUEST, KEY_CUSTOMER_REQUEST, props, message);
-
-        coloredPrint(ANSI_GREEN, "Sent a request for buildings list");
-    }
-
-    private void requestRoomReservation(int numberOfRooms, String buildingId) throws IOException {
-        AMQP.BasicProperties props = new AMQP.BasicProperties
-                .Builder()
-                .headers(Map.of("class", "RequestRoomReservation"))
-                .replyTo(consumerName)
-                .build();
-
-        RequestRoomReservation request = new RequestRoomReservation(numberOfRooms, buildingId);
-        byte[] message = mapper.writeValueAsBytes(request);
-
-        channel.basicPublish(EXCHANGE_CUSTOMER_REQUEST, KEY_CUSTOMER_REQUEST, props, message);
-
+                message.reservationNumber()));
         coloredPrint(ANSI_GREEN, "Sent a request for reservation in building " + buildingId);
     }
 
-    private void requestReservationConfirmation(String reservationNumber) throws IOException {
-        AMQP.BasicProperties props = new AMQP.BasicProperties
-                .Builder()
-                .headers(Map.of("class", "RequestConfirmReservation"))
-                .replyTo(consumerName)
-                .build();
-
-        RequestConfirmReservation request = new RequestConfirmReservation(reservationNumber);
-        byte[] message = mapper.writeValueAsBytes(request);
-
-        channel.basicPublish(EXCHANGE_CUSTOMER_REQUEST, KEY_CUSTOMER_REQUEST, props, message);
+    // the first of the buildings that has the rooms gets the reservation, the others give theirs back
+    private void requestAnyReservation(int numberOfRooms, List<String> buildingIds) {
+        print(client.reserveAny(buildingIds, numberOfRooms, 0), reply -> {
+            for (ReplyBatchReservation.Outcome outcome : reply.outcomes()) {
+                if (outcome.status() == ReplyBatchReservation.Status.RESERVED) {
+                    coloredPrint(ANSI_CYAN, "Thank you for making a reservation at " +
+                            outcome.buildingId() +
+                            ". Your reservation number is " +
+                            outcome.reservationNumber());
+                    return;
+                }
+            }
+            coloredPrint(ANSI_RED, "None of " + buildingIds + " has " + numberOfRooms + " rooms available");
+        });
+        coloredPrint(ANSI_GREEN, "Sent a request for reservation in any of " + buildingIds);
+    }
 
+    private void requestReservationConfirmation(String reservationNumber) {
+        print(client.confirm(reservationNumber), message -> coloredPrint(ANSI_CYAN, "Thank you for confirming your reservation at " +
+                message.buildingId() +
+                ". See you soon!"));
         coloredPrint(ANSI_GREEN, "Sent a confirmation for reservation " + reservationNumber);
     }
 
-    private void requestReservationCancellation(String reservationNumber) throws IOException {
-        AMQP.BasicProperties props = new AMQP.BasicProperties
-                .Builder()
-                .headers(Map.of("class", "RequestCancelReservation"))
-                .replyTo(consumerName)
-                .build();
-
-        RequestCancelReservation request = new RequestCancelReservation(reservationNumber);
-        byte[] message = mapper.writeValueAsBytes(request);
-
-        channel.basicPublish(EXCHANGE_CUSTOMER_REQUEST, KEY_CUSTOMER_REQUEST, props, message);
-
+    private void requestReservationCancellation(String reservationNumber) {
+        print(client.cancel(reservationNumber), message -> coloredPrint(ANSI_CYAN, message.status()));
         coloredPrint(ANSI_GREEN, "Sent a cancellation request of reservation " + reservationNumber);
     }
 
+    // prints the reply, or the error, once it arrives, with how long it took
+    private <T> void print(CompletableFuture<T> reply, Consumer<T> onReply) {
+        long sent = System.nanoTime();
+        reply.whenComplete((message, error) -> {
+            if (error == null) {
+                onReply.accept(message);
+            } else {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (cause instanceof RentalException) {
+                    coloredPrint(ANSI_RED, "An error has occurred: " + cause.getMessage());
+                } else if (cause instanceof TimeoutException) {
+                    coloredPrint(ANSI_RED, "No reply within " + CLIENT_TIMEOUT_MS + " ms");
+                } else {
+                    coloredPrint(ANSI_RED, "Failed to send request: " + cause);
+                }
+            }
+            coloredPrint(ANSI_BLUE, "Reply took " + (System.nanoTime() - sent) / 1000 + " us");
+        });
+    }
+
     private void printCustomerMenu() throws IOException {
         Scanner sc = new Scanner(System.in);
-        int chosenOption = Menu.printMenu("Request all buildings", "Book a room", "Confirm reservation", "Cancel a reservation");
+        int chosenOption = Menu.printMenu("Request all buildings", "Book a room", "Confirm reservation", "Cancel a reservation", "Find buildings with free rooms", "Book a room in any of several buildings");
         switch (chosenOption) {
             case 1 -> requestBuildingsList();
             case 2 -> {
@@ -200,7 +155,21 @@ public class Customer {
                         sc.next();
                     }
                 }
-                requestRoomReservation(numOfRooms, id);
+                LocalDate checkIn = null, checkOut = null;
+                while (true) {
+                    System.out.println("Enter check-in and check-out dates (YYYY-MM-DD YYYY-MM-DD), or - to keep the rooms for good:");
+                    String first = sc.next();
+                    if (first.equals("-")) break;
+                    try {
+                        checkIn = LocalDate.parse(first);
+                        checkOut = LocalDate.parse(sc.next());
+                        break;
+                    } catch (DateTimeParseException e) {
+                        checkIn = null;
+                        System.out.println("That's not a valid date. Please try again.");
+                    }
+                }
+                requestRoomReservation(numOfRooms, id, checkIn, checkOut);
             }
             case 3 -> {
                 System.out.println("Enter your reservation number to confirm your reservation: ");
@@ -212,11 +181,27 @@ public class Customer {
                 String resNum = sc.next();
                 requestReservationCancellation(resNum);
             }
+            case 5 -> {
+                System.out.println("How many free rooms do you need?");
+                int minRooms = sc.nextInt();
+                System.out.println("Which page (starting at 1)?");
+                int page = sc.nextInt();
+                requestBuildingSearch(minRooms, Math.max(0, page - 1));
+            }
+            case 6 -> {
+                System.out.println("Enter the buildings you would like to rent in, separated by commas:");
+                List<String> ids = Arrays.stream(sc.next().split(",")).map(String::trim).filter(id -> !id.isEmpty()).toList();
+                System.out.println("How many rooms?");
+                int numOfRooms = sc.nextInt();
+                requestAnyReservation(numOfRooms, ids);
+            }
             case 0 -> {
                 coloredPrint(ANSI_YELLOW, "Thank you for using our services!");
+                client.close();
                 System.exit(200);
             }
-            default -> printCustomerMenu();
+            default -> {
+            }
         }
     }
 
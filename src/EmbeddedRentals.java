@@ -0,0 +1,63 @@
+package src;
+
+import src.client.RentalClient;
+import src.messages.ReplyRoomReservation;
+import src.runtime.ExecutionMode;
+import src.transport.InMemoryBroker;
+import src.transport.InMemoryTransport;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static src.utils.ANSIColors.*;
+import static src.utils.Config.*;
+
+// A rental agent, a few buildings and a customer in one process, on the broker inside the JVM.
+// Runs one list -> reserve -> confirm -> cancel round and prints how long every step took, no RabbitMQ needed.
+public class EmbeddedRentals {
+    private final InMemoryBroker broker = new InMemoryBroker();
+    private final ExecutionMode execution = ExecutionMode.byName(THREADS);
+
+    public static void main(String[] args) {
+        int buildingCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        new EmbeddedRentals().run(buildingCount);
+    }
+
+    public void run(int buildingCount) {
+        try {
+            // the agent declares the exchanges, but any start order works
+            new RentalAgent().run("RentalAgent", new InMemoryTransport(broker, "RentalAgent", execution));
+            for (int i = 0; i < buildingCount; i++) {
+                String name = "Building" + i;
+                new Building(10).run(name, new InMemoryTransport(broker, name, execution));
+            }
+
+            try (RentalClient client = new RentalClient("Customer", CLIENT_DIRECT_REPLY_TO, CLIENT_TIMEOUT_MS).connect(new InMemoryTransport(broker, "Customer", execution))) {
+                // buildings ping right away, wait until the agent knows all of them
+                List<String> buildings = timed("buildings list", client::buildings);
+                while (buildings.size() < buildingCount) {
+                    TimeUnit.MILLISECONDS.sleep(10);
+                    buildings = timed("buildings list", client::buildings);
+                }
+
+                String building = buildings.get(0);
+                ReplyRoomReservation reservation = timed("reservation", () -> client.reserve(building, 2));
+                timed("confirmation", () -> client.confirm(reservation.reservationNumber()));
+                coloredPrint(ANSI_CYAN, timed("cancellation", () -> client.cancel(reservation.reservationNumber())).status());
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        System.exit(0);
+    }
+
+    // the clock starts before the request is sent, so the time covers the whole round trip
+    private static <T> T timed(String step, Supplier<CompletableFuture<T>> request) throws Exception {
+        long sent = System.nanoTime();
+        T result = request.get().get();
+        coloredPrint(ANSI_BLUE, step + " took " + (System.nanoTime() - sent) / 1000 + " us");
+        return result;
+    }
+}
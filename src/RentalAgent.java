@@ -1,27 +1,92 @@
 package src;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.rabbitmq.client.*;
+import src.agent.AvailabilityCache;
+import src.agent.BatchReservations;
+import src.agent.BuildingRegistry;
+import src.agent.CapacityIndex;
+import src.codec.MessageCodec;
+import src.codec.MessageCodecs;
+import src.logging.Log;
 import src.messages.*;
+import src.metrics.Metrics;
+import src.reservations.ReservationNumber;
+import src.runtime.AckManager;
+import src.runtime.ExecutionMode;
+import src.runtime.ChannelPool;
+import src.runtime.DedupCache;
+import src.runtime.KeyedExecutor;
+import src.transport.MessageChannel;
+import src.transport.Transport;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
+import static src.messages.MessageType.*;
 import static src.utils.ANSIColors.*;
 import static src.utils.Common.*;
+import static src.utils.Config.*;
 
 public class RentalAgent {
 
-    private final LinkedList<String> availableBuildingIds = new LinkedList<>();
-    private ConnectionFactory factory;
-    private Connection connection;
-    private Channel channel;
-    private final ObjectMapper mapper = new ObjectMapper();
+    // buildings that pinged within the ttl
+    private final BuildingRegistry buildings = new BuildingRegistry(REGISTRY_TTL_MS);
+    // free rooms of the buildings as of their latest ping, reservations that can't fit don't go to the building
+    private final AvailabilityCache availability = new AvailabilityCache();
+    // the same pings, ordered by free rooms, for building searches
+    private final CapacityIndex capacity = new CapacityIndex();
+    // batch and any-of reservations waiting for their buildings
+    private BatchReservations batches;
+    // RabbitMQ, or the broker inside this JVM
+    private Transport transport;
+    // declares the topology, and carries the consumers unless every consumer gets its own channel
+    private MessageChannel channel;
+    private AckManager acks;
+    // all forwarding and replies are published through the pool
+    private ChannelPool publishers;
+    // handlers run in parallel, messages of the same customer in order
+    private final KeyedExecutor workers = new KeyedExecutor(AGENT_LANES, ExecutionMode.byName(AGENT_EXECUTOR).newExecutor("agent-worker", AGENT_WORKERS));
+    // platform or virtual threads for callbacks, handlers and timers
+    private final ExecutionMode execution = ExecutionMode.byName(THREADS);
+    private final ScheduledExecutorService scheduler = execution.newScheduler("agent-timer");
+    // customer requests that were recently forwarded or answered, redeliveries are not forwarded again
+    private final DedupCache handled = new DedupCache(DEDUP_SIZE, DEDUP_TTL_MS);
+    // counts and times every message from delivery to ack, time waiting for a worker included
+    private Metrics metrics;
+    private LongAdder duplicates;
+    private LongAdder turnedAway;
+    private LongAdder batchReleased;
     private String consumerName = "";
+    private final MessageDispatcher dispatcher = new MessageDispatcher()
+            // ping alive
+            .on(REPLY_BUILDING_PING, ReplyBuildingPing.class, this::updateBuildingsList)
+            .on(REPLY_BUILDING_PINGS, ReplyBuildingPings.class, this::updateBuildingsList)
+            .on(BUILDING_DEATH, String.class, this::removeBuildingFromList)
+            // buildings list
+            .on(REQUEST_BUILDINGS_LIST, this::replyBuildingsList)
+            .on(REQUEST_BUILDING_SEARCH, RequestBuildingSearch.class, this::replyBuildingSearch)
+            // reservation of a room
+            .on(REQUEST_ROOM_RESERVATION, this::executeMakingReservation)
+            .on(REPLY_ROOM_RESERVATION, this::replyMakingReservation)
+            // reservations in several buildings at once
+            .on(REQUEST_BATCH_RESERVATION, RequestBatchReservation.class, this::executeBatchReservation)
+            // confirmation of a reservation
+            .on(REQUEST_CONFIRM_RESERVATION, this::executeConfirmReservation)
+            .on(REPLY_CONFIRM_RESERVATION, this::replyConfirmReservation)
+            // cancellation of a reservation
+            .on(REQUEST_CANCEL_RESERVATION, this::executeCancelReservation)
+            .on(REPLY_CANCEL_RESERVATION, this::replyCancelReservation)
+            // holds that were not confirmed in time
+            .on(REPLY_RESERVATION_EXPIRED, this::replyReservationExpired)
+            // error handling
+            .on(REPLY_EXECUTION_ERROR, this::handleError);
 
     public static void main(String[] args) {
         Random rand = new Random();
@@ -31,28 +96,35 @@ public class RentalAgent {
     }
 
     public void run(String name) {
+        try {
+            run(name, Transport.connect(name, execution));
+        } catch (IOException | TimeoutException err) {
+            throw new RuntimeException(err);
+        }
+    }
+
+    public void run(String name, Transport transport) {
         try {
             consumerName = name;
+            batches = new BatchReservations(consumerName, new BatchAgent(), scheduler, BATCH_LATE_MS);
 
-            factory = new ConnectionFactory();
-            connection = factory.newConnection();
-            channel = connection.createChannel();
-            channel.addReturnListener((undeliveredMessage) -> {
-                try {
-                    coloredPrint(ANSI_RED, "Message " + (new String(undeliveredMessage.getBody())) + " not delivered to building. Redirecting error message to the customer");
-                    String replyTo = undeliveredMessage.getProperties().getReplyTo();
-                    AMQP.BasicProperties props = new AMQP.BasicProperties.Builder()
-                            .headers(Map.of("class", "ReplyExecutionError"))
-                            .build();
-                    byte[] error = mapper.writeValueAsBytes(new ReplyExecutionError("Your message was not delivered to the building. Try checking validity of your reservation number or the spelling of the buildings name for typos"));
-                    channel.basicPublish("", replyTo, true, props, error);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-            });
+            this.transport = transport;
+            execution.reportThreads(scheduler, THREADS_REPORT_MS);
+            channel = transport.createChannel();
+            startMetrics();
+            publishers = new ChannelPool(transport, AGENT_PUBLISH_CHANNELS, this::handleReturn);
+
+            // messages that keep failing end up in the dead letter queue
+            Map<String, Object> deadLetters = AckManager.deadLetterArguments(channel);
+
+            // EXCHANGES, declared by whoever comes first, so agents, buildings and customers can start in any order
+            channel.exchangeDeclare(EXCHANGE_PING_ALIVE_BUILDINGS, BuiltinExchangeType.FANOUT);
+            channel.exchangeDeclare(EXCHANGE_CUSTOMER_REQUEST, BuiltinExchangeType.DIRECT);
+            channel.exchangeDeclare(EXCHANGE_BUILDINGS_REPLIES, BuiltinExchangeType.DIRECT);
+            channel.exchangeDeclare(EXCHANGE_BUILDINGS, BuiltinExchangeType.DIRECT);
 
             // PERSONAL QUEUE
-            channel.queueDeclare(consumerName, false, false, false, null);
+            channel.queueDeclare(consumerName, false, false, false, deadLetters);
 
             // BUILDING PING ALIVE RECEIVING
             String buildingStatusUpdateQueue = consumerName + "UpdateQueue";
@@ -60,179 +132,388 @@ public class RentalAgent {
             channel.queueBind(buildingStatusUpdateQueue, EXCHANGE_PING_ALIVE_BUILDINGS, "");
 
             // CUSTOMER REQUEST RECEIVING
-            channel.queueDeclare(QUEUE_CUSTOMER_REQUEST, false, false, false, null);
+            channel.queueDeclare(QUEUE_CUSTOMER_REQUEST, false, false, false, deadLetters);
             channel.queueBind(QUEUE_CUSTOMER_REQUEST, EXCHANGE_CUSTOMER_REQUEST, KEY_CUSTOMER_REQUEST);
 
             // RECEIVING REPLIES FROM BUILDINGS
-            channel.queueDeclare(QUEUE_BUILDINGS_REPLIES, false, false, false, null);
+            channel.queueDeclare(QUEUE_BUILDINGS_REPLIES, false, false, false, deadLetters);
             channel.queueBind(QUEUE_BUILDINGS_REPLIES, EXCHANGE_BUILDINGS_REPLIES, KEY_BUILDINGS_REPLIES);
 
-            // SENDING REQUEST TO BUILDINGS
-            channel.exchangeDeclare(EXCHANGE_RENTAL_AGENTS_REQUESTS, BuiltinExchangeType.DIRECT);
+            // COPIES OF DIRECT REPLIES, buildings only publish them with the tap turned on
+            if (DIRECT_REPLIES && REPLY_TAP) {
+                channel.exchangeDeclare(EXCHANGE_REPLIES_TAP, BuiltinExchangeType.FANOUT);
+                String tapQueue = consumerName + "Tap";
+                channel.queueDeclare(tapQueue, false, false, true, null);
+                channel.queueBind(tapQueue, EXCHANGE_REPLIES_TAP, "");
+                // observing is best effort, the copies are acked on delivery
+                channel.basicConsume(tapQueue, true, this::observeReply);
+            }
 
             rentalAgentConsume(buildingStatusUpdateQueue);
 
-        } catch (IOException | TimeoutException err) {
+            // buildings that crash don't announce their death, they just stop pinging
+            long sweepMs = Math.max(1, buildings.ttlMs() / 2);
+            scheduler.scheduleAtFixedRate(this::expireSilentBuildings, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+
+        } catch (IOException err) {
             throw new RuntimeException(err);
         }
     }
 
+    private void startMetrics() {
+        metrics = new Metrics("RentalAgent", consumerName, "receive->ack")
+                .gauge("buildings.registered", () -> buildings.snapshot().buildingIds().size())
+                .gauge("dedup.size", handled::size)
+                .gauge("availability.known", availability::size)
+                .gauge("capacity.indexed", capacity::size)
+                .gauge("capacity.version", capacity::version)
+                .gauge("batches.pending", batches::pending)
+                .gauge("log.dropped", Log::dropped);
+        duplicates = metrics.counter("duplicates");
+        turnedAway = metrics.counter("reservations.turnedAway");
+        batchReleased = metrics.counter("batches.released");
+        if (METRICS_JMX) metrics.registerMBean();
+        metrics.dumpEvery(scheduler, METRICS_DUMP_MS);
+    }
+
     private void rentalAgentConsume(String buildingStatusUpdateQueue) throws IOException {
+        acks = new AckManager(channel, ACK_BATCH_SIZE).start(scheduler, ACK_WINDOW_MS);
+
         // Set up consumer for customer requests
-        channel.basicConsume(QUEUE_CUSTOMER_REQUEST, false, getDeliverCallback(), consumerTag -> {
-        });
+        consume(QUEUE_CUSTOMER_REQUEST, PREFETCH_CUSTOMER_REQUESTS);
 
         // Set up consumer for buildings replies like successful/unsuccessful reservation/confirmation/cancellation
-        channel.basicConsume(QUEUE_BUILDINGS_REPLIES, false, getDeliverCallback(), consumerTag -> {
-        });
+        consume(QUEUE_BUILDINGS_REPLIES, PREFETCH_BUILDINGS_REPLIES);
 
         // Set up consumer from the personal queue
-        channel.basicConsume(consumerName, false, getDeliverCallback(), consumerTag -> {
-        });
+        consume(consumerName, PREFETCH);
 
         // Set up consumer for ping alive of buildings
-        channel.basicConsume(buildingStatusUpdateQueue, false, getDeliverCallback(), consumerTag -> {
-        });
+        consume(buildingStatusUpdateQueue, PREFETCH);
     }
 
-    private DeliverCallback getDeliverCallback() {
+    private void consume(String queue, int prefetch) throws IOException {
+        // a channel delivers to its consumers one message at a time, a channel per consumer lets them run side by side
+        MessageChannel consumerChannel = AGENT_CHANNEL_PER_CONSUMER ? transport.createChannel() : channel;
+        AckManager consumerAcks = consumerChannel == channel ? acks : new AckManager(consumerChannel, ACK_BATCH_SIZE).start(scheduler, ACK_WINDOW_MS);
+
+        // basicQos applies to the consumers started after it, so each consumer gets its own prefetch
+        consumerChannel.basicQos(prefetch);
+        consumerChannel.basicConsume(queue, false, getDeliverCallback(consumerAcks));
+        metrics.queueDepth(queue, channel);
+    }
+
+    private DeliverCallback getDeliverCallback(AckManager acks) {
+        // Hand the message to a worker and return, the channel can deliver the next one right away.
+        // Requests and replies of one customer share a lane, so a confirmation or cancellation
+        // is never handled before the reservation it is about. Pings and deaths share their consumer's lane.
         return (consumerTag, delivery) -> {
-            try {
-                if (delivery.getProperties().getHeaders() != null) {
-                    String clazz = delivery.getProperties().getHeaders().get("class").toString();
-                    switch (clazz) {
-                        // ping alive
-                        case "ReplyBuildingPing" -> updateBuildingsList(consumerTag, delivery);
-                        case "BuildingDeath" -> removeBuildingFromList(consumerTag, delivery);
-                        // buildings list
-                        case "RequestBuildingsList" -> replyBuildingsList(consumerTag, delivery);
-                        // reservation of a room
-                        case "RequestRoomReservation" -> executeMakingReservation(consumerTag, delivery);
-                        case "ReplyRoomReservation" -> replyMakingReservation(consumerTag, delivery);
-                        // confirmation of a reservation
-                        case "RequestConfirmReservation" -> executeConfirmReservation(consumerTag, delivery);
-                        case "ReplyConfirmReservation" -> replyConfirmReservation(consumerTag, delivery);
-                        // cancellation of a reservation
-                        case "RequestCancelReservation" -> executeCancelReservation(consumerTag, delivery);
-                        case "ReplyCancelReservation" -> replyCancelReservation(consumerTag, delivery);
-                        // error handling
-                        case "ReplyExecutionError" -> handleError(consumerTag, delivery);
-                        default -> throw new IllegalArgumentException("Unknown class header " + clazz);
-                    }
-                } else {
-                    coloredPrint(ANSI_YELLOW, "Received a message without header, further action unknown");
-                }
-            } catch (Exception err) {
-                System.err.println("An error occurred before acknowledging: " + err.fillInStackTrace());
-            } finally {
-                try {
-                    channel.basicAck(delivery.getEnvelope().getDeliveryTag(), true);
-                } catch (IOException e) {
-                    System.err.println("Failed to acknowledge message: " + e.getMessage());
+            long started = System.nanoTime();
+            String replyTo = delivery.getProperties().getReplyTo();
+            workers.execute(replyTo != null ? replyTo : consumerTag, () -> handleDelivery(consumerTag, delivery, acks, started));
+        };
+    }
+
+    private void handleDelivery(String consumerTag, Delivery delivery, AckManager acks, long started) {
+        MessageType type = null;
+        try {
+            type = MessageType.of(delivery.getProperties());
+            metrics.received(type);
+            String messageId = delivery.getProperties().getMessageId();
+            DedupCache.Reply reply = messageId == null ? null : handled.get(messageId);
+            if (reply != null) {
+                duplicates.increment();
+                Log.debug(ANSI_YELLOW, "Received message {} again, repeating the reply", messageId);
+                if (!reply.isEmpty()) publishers.publish(reply.exchange(), reply.routingKey(), reply.mandatory(), reply.props(), reply.body());
+            } else if (consumerName.equals(delivery.getProperties().getReplyTo()) && type != null && takeOwnReply(type, delivery)) {
+                // a building answered the agent itself, relaying it would send it right back to this agent
+                Log.debug(ANSI_CYAN, "Took {} {} for a batch", type, delivery.getProperties().getCorrelationId());
+            } else if (!dispatcher.dispatch(consumerTag, delivery)) {
+                Log.warn(ANSI_YELLOW, "Received a message without header, further action unknown");
+            } else if (messageId != null) {
+                handled.put(messageId, DedupCache.HANDLED);
+            }
+            acks.ack(delivery);
+            metrics.completed(type, started);
+        } catch (Exception err) {
+            metrics.failed(type);
+            Log.error(ANSI_RED, "An error occurred before acknowledging: {}", err);
+            acks.fail(delivery);
+        }
+    }
+
+    private void handleReturn(Return undeliveredMessage) {
+        metrics.returned();
+        try {
+            AMQP.BasicProperties props = undeliveredMessage.getProperties();
+            if (consumerName.equals(props.getReplyTo())) {
+                // sent by the agent itself, for a batch or to release a hold of one, the error would only come back here
+                if (!batches.failed(props.getMessageId(), "No building " + undeliveredMessage.getRoutingKey())) {
+                    Log.warn(ANSI_YELLOW, "Couldn't release a hold in {}, it runs out on its own", undeliveredMessage.getRoutingKey());
                 }
+                return;
             }
-        };
+            Log.warn(ANSI_RED, "Message {} not delivered to building. Redirecting error message to the customer", (Supplier<String>) () -> new String(undeliveredMessage.getBody()));
+            sendErrorToCustomer(undeliveredMessage.getProperties(), "Your message was not delivered to the building. Try checking validity of your reservation number or the spelling of the buildings name for typos");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     private void handleError(String consumerTag, Delivery delivery) throws IOException {
         String replyTo = delivery.getProperties().getReplyTo();
-        channel.basicPublish("", replyTo, true, delivery.getProperties(), delivery.getBody());
-        coloredPrint(ANSI_RED, "Received an error from building. Redirecting the issue to " + replyTo);
+        publishers.publish("", replyTo, true, delivery.getProperties(), delivery.getBody());
+        metrics.errorReply();
+        Log.debug(ANSI_RED, "Received an error from building. Redirecting the issue to {}", replyTo);
     }
 
     private void replyCancelReservation(String consumerTag, Delivery delivery) throws IOException {
         String replyTo = delivery.getProperties().getReplyTo();
-        ReplyCancelReservation message = mapper.readValue(delivery.getBody(), ReplyCancelReservation.class);
 
         // Send the reply to the reply-to address specified by the message
-        channel.basicPublish("", replyTo, true, delivery.getProperties(), delivery.getBody());
-        coloredPrint(ANSI_GREEN, " Reservation " + message.reservationNumber() + " canceled");
+        publishers.publish("", replyTo, true, delivery.getProperties(), delivery.getBody());
+        // only the reservation number is needed, no need to decode the whole reply, nor to read it when nothing uses it
+        if (AGENT_AVAILABILITY_CACHE || Log.isDebugEnabled()) {
+            String reservationNumber = MessageCodecs.of(delivery.getProperties()).readField(delivery.getBody(), ReplyCancelReservation.class, "reservationNumber");
+            availability.released(ReservationNumber.buildingOf(reservationNumber));
+            Log.debug(ANSI_GREEN, " Reservation {} canceled", reservationNumber);
+        }
     }
 
     private void replyConfirmReservation(String consumerTag, Delivery delivery) throws IOException {
         String replyTo = delivery.getProperties().getReplyTo();
-        ReplyConfirmReservation message = mapper.readValue(delivery.getBody(), ReplyConfirmReservation.class);
 
         // Send the reply to the reply-to address specified by the message
-        channel.basicPublish("", replyTo, true, delivery.getProperties(), delivery.getBody());
-        coloredPrint(ANSI_GREEN, "Reservation " +
-                message.reservationNumber() +
-                " of " +
-                replyTo +
-                " in " +
-                message.buildingId() +
-                " successfully confirmed");
+        publishers.publish("", replyTo, true, delivery.getProperties(), delivery.getBody());
+        if (Log.isDebugEnabled()) {
+            String reservationNumber = MessageCodecs.of(delivery.getProperties()).readField(delivery.getBody(), ReplyConfirmReservation.class, "reservationNumber");
+            Log.debug(ANSI_GREEN, "Reservation {} of {} in {} successfully confirmed", reservationNumber, replyTo, ReservationNumber.buildingOf(reservationNumber));
+        }
     }
 
     private void replyMakingReservation(String consumerTag, Delivery delivery) throws IOException {
         String replyTo = delivery.getProperties().getReplyTo();
 
         // Send the reply to the reply-to address specified by the message
-        channel.basicPublish("", replyTo, true, delivery.getProperties(), delivery.getBody());
-        coloredPrint(ANSI_GREEN, "Replied with reservation number to " + replyTo);
+        publishers.publish("", replyTo, true, delivery.getProperties(), delivery.getBody());
+        Log.debug(ANSI_GREEN, "Replied with reservation number to {}", replyTo);
+    }
+
+    private void replyReservationExpired(String consumerTag, Delivery delivery) throws IOException {
+        String replyTo = delivery.getProperties().getReplyTo();
+
+        // Send the reply to the reply-to address specified by the message
+        publishers.publish("", replyTo, true, delivery.getProperties(), delivery.getBody());
+        if (AGENT_AVAILABILITY_CACHE || Log.isDebugEnabled()) {
+            String reservationNumber = MessageCodecs.of(delivery.getProperties()).readField(delivery.getBody(), ReplyReservationExpired.class, "reservationNumber");
+            availability.released(ReservationNumber.buildingOf(reservationNumber));
+            Log.debug(ANSI_YELLOW, "Reservation {} of {} expired", reservationNumber, replyTo);
+        }
+    }
+
+    private void observeReply(String consumerTag, Delivery delivery) {
+        Log.debug(ANSI_CYAN, "Observed {} sent to {}", MessageType.of(delivery.getProperties()), delivery.getProperties().getReplyTo());
     }
 
     private void replyBuildingsList(String tag, Delivery delivery) throws IOException {
-        System.out.println("Collecting buildings list...");
+        Log.debug(ANSI_RESET, "Collecting buildings list...");
         String replyTo = delivery.getProperties().getReplyTo();
 
-        // Prepare the list of available building IDs
-        String jsonString = mapper.writeValueAsString(availableBuildingIds);
-        byte[] buildingsListBytes = jsonString.getBytes(StandardCharsets.UTF_8);
+        // The list is serialized once per change of the registry, customers print it as is so it is always JSON
+        byte[] buildingsListBytes = buildings.snapshot().encoded();
 
         // Prepare the properties for the reply
-        AMQP.BasicProperties replyProps = new AMQP.BasicProperties.Builder()
-                .headers(Map.of("class", "ReplyBuildingsList"))
-                .build();
+        AMQP.BasicProperties replyProps = MessageTemplates.of(REPLY_BUILDINGS_LIST, MessageCodecs.JSON, null, delivery.getProperties().getMessageId());
 
         // Send the reply to the reply-to address specified by the message
-        channel.basicPublish("", replyTo, true, replyProps, buildingsListBytes);
-        coloredPrint(ANSI_GREEN, "Replied with buildings list to " + replyTo);
+        reply(delivery.getProperties(), replyProps, buildingsListBytes);
+        Log.debug(ANSI_GREEN, "Replied with buildings list to {}", replyTo);
     }
 
+    // served from the capacity index, the reply body is encoded once per version of the index and search
+    private void replyBuildingSearch(String tag, Delivery delivery, RequestBuildingSearch search) throws IOException {
+        if (search.minRooms() < 0 || search.pageSize() <= 0 || search.page() < 0) {
+            sendErrorToCustomer(delivery.getProperties(), "A search needs a minimum of rooms that isn't negative, a positive page size and a page from 0");
+            return;
+        }
+        MessageCodec replyCodec = MessageCodecs.of(delivery.getProperties());
+        byte[] body = capacity.search(search.minRooms(), Math.min(search.pageSize(), SEARCH_MAX_PAGE_SIZE), search.page(), replyCodec);
 
-    private void updateBuildingsList(String tag, Delivery delivery) throws IOException {
-        // debyteify the buildings list
-        byte[] byteArray = delivery.getBody();
-        ReplyBuildingPing building = mapper.readValue(byteArray, ReplyBuildingPing.class);
-        // use synchronized to keep buildings list thread safe
-        synchronized (availableBuildingIds) {
-            // only add the building that pinged to the list is its not already in there
-            if (!availableBuildingIds.contains(building.nameOfBuilding())) {
-                availableBuildingIds.add(building.nameOfBuilding());
-                coloredPrint(ANSI_CYAN, "Updated building list with ID: " + building.nameOfBuilding());
-            }
+        AMQP.BasicProperties replyProps = MessageTemplates.of(REPLY_BUILDING_SEARCH, replyCodec, null, delivery.getProperties().getMessageId());
+        reply(delivery.getProperties(), replyProps, body);
+        Log.debug(ANSI_GREEN, "Replied with buildings with at least {} free rooms to {}", search.minRooms(), delivery.getProperties().getReplyTo());
+    }
+
+    private void updateBuildingsList(String tag, Delivery delivery, ReplyBuildingPing building) {
+        availability.update(building);
+        capacity.update(building);
+        if (buildings.seen(building.nameOfBuilding())) {
+            Log.info(ANSI_CYAN, "Updated building list with ID: {}", building.nameOfBuilding());
         }
     }
 
-    private void removeBuildingFromList(String consumerTag, Delivery delivery) throws IOException {
-        String buildingId = mapper.readValue(delivery.getBody(), String.class);
-        availableBuildingIds.remove(buildingId);
+    // the buildings of a BuildingHost ping together
+    private void updateBuildingsList(String tag, Delivery delivery, ReplyBuildingPings pings) {
+        for (ReplyBuildingPing building : pings.pings()) updateBuildingsList(tag, delivery, building);
+    }
+
+    private void removeBuildingFromList(String consumerTag, Delivery delivery, String buildingId) throws IOException {
+        buildings.remove(buildingId);
+        availability.remove(buildingId);
+        capacity.remove(buildingId);
         channel.queueDelete(buildingId);
-        coloredPrint(ANSI_CYAN, buildingId + " has been shut off, removing from active list.");
+        Log.info(ANSI_CYAN, "{} has been shut off, removing from active list.", buildingId);
+    }
+
+    private void expireSilentBuildings() {
+        // the queue is kept, a building that was only cut off picks it up again with its next ping
+        List<String> expired = buildings.expire();
+        for (String buildingId : expired) {
+            availability.remove(buildingId);
+            capacity.remove(buildingId);
+            Log.warn(ANSI_YELLOW, "{} stopped pinging, removing from active list.", buildingId);
+        }
     }
 
     private void executeMakingReservation(String consumerTag, Delivery delivery) throws IOException {
-        String toBuilding = mapper.readValue(delivery.getBody(), RequestRoomReservation.class).buildingId();
+        // The body still goes on to the building as it came. Unlike confirm and cancel, which only read the reservation
+        // number with readField, the agent needs the whole request here: the building, the rooms and the dates decide
+        // whether it can turn the reservation away itself.
+        RequestRoomReservation request = MessageCodecs.of(delivery.getProperties()).decode(delivery.getBody(), RequestRoomReservation.class);
+        String toBuilding = request.buildingId();
+        if (toBuilding == null) {
+            sendErrorToCustomer(delivery.getProperties(), "Your reservation request doesn't name a building");
+            return;
+        }
+
+        // no round trip to the building when its latest ping already says no, the building has the final word on a yes.
+        // The ping counts the rooms free on every night, a dated stay may fit anyway, so only undated ones are turned away
+        boolean undated = request.checkIn() == null && request.checkOut() == null;
+        AvailabilityCache.Availability known = AGENT_AVAILABILITY_CACHE && undated ? availability.get(toBuilding) : null;
+        if (known != null && known.cannotFit(request.rooms())) {
+            turnedAway.increment();
+            sendErrorToCustomer(delivery.getProperties(), toBuilding + " doesn't have " + request.rooms() + " available rooms. Only " + known.freeRooms() + " rooms are available");
+            Log.debug(ANSI_YELLOW, "Turned away a request for {} rooms in {}", request.rooms(), toBuilding);
+            return;
+        }
 
-        channel.basicPublish("", toBuilding, true, delivery.getProperties(), delivery.getBody());
+        publishers.publish(EXCHANGE_BUILDINGS, toBuilding, true, delivery.getProperties(), delivery.getBody());
 
-        coloredPrint(ANSI_GREEN, "Sent a request to building " + toBuilding);
+        Log.debug(ANSI_GREEN, "Sent a request to building {}", toBuilding);
     }
 
-    private void executeConfirmReservation(String consumerTag, Delivery delivery) throws IOException {
-        String reservationNumber = mapper.readValue(delivery.getBody(), RequestConfirmReservation.class).reservationNumber();
+    // every reservation goes to its building as a request of the agent's own, the customer gets one reply for all of them
+    private void executeBatchReservation(String consumerTag, Delivery delivery, RequestBatchReservation batch) throws IOException {
+        if (batch.reservations() == null || batch.reservations().isEmpty()) {
+            sendErrorToCustomer(delivery.getProperties(), "Your batch doesn't contain any reservation");
+            return;
+        }
+        long deadlineMs = Math.min(batch.deadlineMs() > 0 ? batch.deadlineMs() : BATCH_DEADLINE_MS, BATCH_MAX_DEADLINE_MS);
+        batches.start(delivery.getProperties(), batch, deadlineMs, this::refusal);
+        Log.debug(ANSI_GREEN, "Sent a batch of {} reservations for {}", batch.reservations().size(), delivery.getProperties().getReplyTo());
+    }
+
+    // why a reservation of a batch can't work without asking its building, null when only the building can tell
+    private String refusal(RequestRoomReservation reservation) {
+        if (reservation.rooms() <= 0) return "A reservation needs at least one room";
+        boolean undated = reservation.checkIn() == null && reservation.checkOut() == null;
+        AvailabilityCache.Availability known = AGENT_AVAILABILITY_CACHE && undated ? availability.get(reservation.buildingId()) : null;
+        if (known == null || !known.cannotFit(reservation.rooms())) return null;
+        turnedAway.increment();
+        return reservation.buildingId() + " doesn't have " + reservation.rooms() + " available rooms. Only " + known.freeRooms() + " rooms are available";
+    }
+
+    // Replies to the requests the agent sent for batches, and to its releases of holds nobody asked for in the end.
+    // Returns false for anything else addressed to the agent, which is dispatched as usual.
+    private boolean takeOwnReply(MessageType type, Delivery delivery) throws IOException {
+        AMQP.BasicProperties props = delivery.getProperties();
+        MessageCodec codec = MessageCodecs.of(props);
+        boolean known;
+        switch (type) {
+            case REPLY_ROOM_RESERVATION -> known = batches.reserved(props.getCorrelationId(), codec.decode(delivery.getBody(), ReplyRoomReservation.class).reservationNumber());
+            case REPLY_EXECUTION_ERROR -> known = batches.failed(props.getCorrelationId(), codec.decode(delivery.getBody(), ReplyExecutionError.class).errorMessage());
+            case REPLY_CANCEL_RESERVATION -> {
+                String reservationNumber = codec.readField(delivery.getBody(), ReplyCancelReservation.class, "reservationNumber");
+                availability.released(ReservationNumber.buildingOf(reservationNumber));
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+        // a batch that was forgotten since, a hold made this late runs out on its own
+        if (!known) Log.debug(ANSI_YELLOW, "Dropped {} {}, its batch is gone", type, props.getCorrelationId());
+        return true;
+    }
+
+    // what BatchReservations asks of the agent, all of it on behalf of the customer of the batch
+    private class BatchAgent implements BatchReservations.Agent {
+        @Override
+        public void reserve(String partId, RequestRoomReservation reservation, AMQP.BasicProperties batchRequest) throws IOException {
+            MessageCodec codec = MessageCodecs.of(batchRequest);
+            AMQP.BasicProperties props = MessageTemplates.onBehalfOf(REQUEST_ROOM_RESERVATION, codec, consumerName, partId, batchRequest);
+            // a building that doesn't exist comes back through the return listener, as an error to the agent
+            publishers.publish(EXCHANGE_BUILDINGS, reservation.buildingId(), true, props, codec.encode(reservation));
+        }
 
-        channel.basicPublish(EXCHANGE_RENTAL_AGENTS_REQUESTS, reservationNumber, true, delivery.getProperties(), delivery.getBody());
+        @Override
+        public void release(String reservationNumber, AMQP.BasicProperties batchRequest) throws IOException {
+            MessageCodec codec = MessageCodecs.of(batchRequest);
+            String messageId = consumerName + "-release-" + reservationNumber;
+            AMQP.BasicProperties props = MessageTemplates.onBehalfOf(REQUEST_CANCEL_RESERVATION, codec, consumerName, messageId, batchRequest);
+            publishers.publish(EXCHANGE_BUILDINGS, ReservationNumber.buildingOf(reservationNumber), true, props, codec.encode(new RequestCancelReservation(reservationNumber)));
+            batchReleased.increment();
+        }
 
-        coloredPrint(ANSI_GREEN, "Sent a confirmation request to building with reservation " + reservationNumber);
+        @Override
+        public void reply(AMQP.BasicProperties batchRequest, ReplyBatchReservation reply) throws IOException {
+            MessageCodec codec = MessageCodecs.of(batchRequest);
+            AMQP.BasicProperties props = MessageTemplates.of(REPLY_BATCH_RESERVATION, codec, null, batchRequest.getMessageId());
+            RentalAgent.this.reply(batchRequest, props, codec.encode(reply));
+            Log.debug(ANSI_GREEN, "Replied to a batch of {} reservations to {}", reply.outcomes().size(), batchRequest.getReplyTo());
+        }
+    }
+
+    private void executeConfirmReservation(String consumerTag, Delivery delivery) throws IOException {
+        String reservationNumber = MessageCodecs.of(delivery.getProperties()).readField(delivery.getBody(), RequestConfirmReservation.class, "reservationNumber");
+        if (!forwardToOwningBuilding(reservationNumber, delivery)) return;
+
+        Log.debug(ANSI_GREEN, "Sent a confirmation request to building with reservation {}", reservationNumber);
     }
 
     private void executeCancelReservation(String consumerTag, Delivery delivery) throws IOException {
-        String reservationNumber = mapper.readValue(delivery.getBody(), RequestCancelReservation.class).reservationNumber();
+        String reservationNumber = MessageCodecs.of(delivery.getProperties()).readField(delivery.getBody(), RequestCancelReservation.class, "reservationNumber");
+        if (!forwardToOwningBuilding(reservationNumber, delivery)) return;
 
-        channel.basicPublish(EXCHANGE_RENTAL_AGENTS_REQUESTS, reservationNumber, true, delivery.getProperties(), delivery.getBody());
+        Log.debug(ANSI_GREEN, "Sent a cancellation request to building with reservation {}", reservationNumber);
+    }
+
+    // The reservation number starts with the building that issued it, so the request goes straight to
+    // that building's queue, or its host's. Unknown buildings come back through the return listener as usual.
+    private boolean forwardToOwningBuilding(String reservationNumber, Delivery delivery) throws IOException {
+        String toBuilding = ReservationNumber.buildingOf(reservationNumber);
+        if (toBuilding == null) {
+            sendErrorToCustomer(delivery.getProperties(), reservationNumber + " is not a valid reservation number");
+            return false;
+        }
+
+        publishers.publish(EXCHANGE_BUILDINGS, toBuilding, true, delivery.getProperties(), delivery.getBody());
+        return true;
+    }
+
+    // answers in the codec the customer used for the request
+    private void sendErrorToCustomer(AMQP.BasicProperties requestProps, String errorMessage) throws IOException {
+        MessageCodec replyCodec = MessageCodecs.of(requestProps);
+        AMQP.BasicProperties props = MessageTemplates.of(REPLY_EXECUTION_ERROR, replyCodec, null, requestProps.getMessageId());
+        byte[] error = replyCodec.encode(new ReplyExecutionError(errorMessage));
+        reply(requestProps, props, error);
+        metrics.errorReply();
+    }
 
-        coloredPrint(ANSI_GREEN, "Sent a cancellation request to building with reservation " + reservationNumber);
+    // replies to the customer and remembers the reply in case the request is delivered again
+    private void reply(AMQP.BasicProperties requestProps, AMQP.BasicProperties props, byte[] body) throws IOException {
+        publishers.publish("", requestProps.getReplyTo(), true, props, body);
+        String messageId = requestProps.getMessageId();
+        if (messageId != null) handled.put(messageId, new DedupCache.Reply("", requestProps.getReplyTo(), true, props, body));
     }
 }
\ No newline at end of file
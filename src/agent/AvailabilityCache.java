@@ -0,0 +1,62 @@
+package src.agent;
+
+import src.messages.ReplyBuildingPing;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Free rooms of every building as its latest ping reported them, so a reservation that can't fit is turned
+// away by the rental agent instead of making the round trip to the building and back.
+// The cache only ever says no. A request that fits is forwarded and the building decides as before, so an
+// outdated entry can't get anything accepted. The other way round, rooms given back after the ping would
+// make the entry too low: a cancellation or expiry the agent relays marks the building's count unknown until
+// its next ping, and buildings ping right after giving rooms back, for the replies that don't pass the agent.
+// The entry keeps its version, so a ping sent before the release that arrives after it is still ignored.
+public class AvailabilityCache {
+
+    public record Availability(int freeRooms, int capacity, long version) {
+        // free rooms of an entry whose count is unknown since rooms were given back
+        public static final int UNKNOWN = Integer.MAX_VALUE;
+
+        // true only when the ping says the rooms aren't there
+        public boolean cannotFit(int rooms) {
+            return rooms > freeRooms;
+        }
+    }
+
+    private final Map<String, Availability> buildings = new ConcurrentHashMap<>();
+
+    // keeps the ping unless a newer one is known already
+    public void update(ReplyBuildingPing ping) {
+        // a ping without a capacity comes from a building that doesn't report its rooms
+        if (ping.capacity() <= 0) return;
+        Availability reported = new Availability(ping.availableRooms(), ping.capacity(), ping.version());
+        buildings.merge(ping.nameOfBuilding(), reported, (known, fresh) -> fresh.version() > known.version() ? fresh : known);
+    }
+
+    public void remove(String buildingId) {
+        buildings.remove(buildingId);
+    }
+
+    // rooms of the building were given back, its requests are forwarded until a newer ping comes in
+    public void released(String buildingId) {
+        if (buildingId != null) buildings.computeIfPresent(buildingId, (id, known) -> new Availability(Availability.UNKNOWN, known.capacity(), known.version()));
+    }
+
+    // null for a building that hasn't reported its rooms
+    public Availability get(String buildingId) {
+        return buildings.get(buildingId);
+    }
+
+    public boolean cannotFit(String buildingId, int rooms) {
+        Availability availability = buildings.get(buildingId);
+        return availability != null && availability.cannotFit(rooms);
+    }
+
+    // buildings whose free rooms are known
+    public int size() {
+        int known = 0;
+        for (Availability availability : buildings.values()) if (availability.freeRooms() != Availability.UNKNOWN) known++;
+        return known;
+    }
+}
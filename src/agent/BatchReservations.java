@@ -0,0 +1,201 @@
+package src.agent;
+
+import com.rabbitmq.client.AMQP;
+import src.logging.Log;
+import src.messages.ReplyBatchReservation;
+import src.messages.ReplyBatchReservation.Outcome;
+import src.messages.ReplyBatchReservation.Status;
+import src.messages.RequestBatchReservation;
+import src.messages.RequestRoomReservation;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static src.utils.ANSIColors.*;
+
+// Batch and any-of reservations that a rental agent scatters over the buildings and gathers again.
+// Every reservation of a batch goes to its building at once, as a request of the agent's own with its own
+// message id, and the agent answers the customer with one ReplyBatchReservation: when every building has
+// answered, when the deadline is up, or for any-of as soon as the first building has the rooms. So the
+// customer waits for the slowest building instead of the sum of all of them, and for any-of only the fastest.
+// A hold the customer won't hear about, the surplus of an any-of or one made after the deadline, is released.
+public class BatchReservations {
+
+    // what the rental agent does for a batch, the requests are on behalf of the customer of the batch request
+    public interface Agent {
+        void reserve(String partId, RequestRoomReservation reservation, AMQP.BasicProperties batchRequest) throws IOException;
+
+        void release(String reservationNumber, AMQP.BasicProperties batchRequest) throws IOException;
+
+        void reply(AMQP.BasicProperties batchRequest, ReplyBatchReservation reply) throws IOException;
+    }
+
+    private static final class Batch {
+        final AMQP.BasicProperties request;
+        final RequestRoomReservation[] reservations;
+        final boolean anyOf;
+        // null while the building hasn't answered
+        final Outcome[] outcomes;
+        int outstanding;
+        boolean won, replied;
+        ScheduledFuture<?> deadline;
+
+        Batch(AMQP.BasicProperties request, RequestRoomReservation[] reservations, boolean anyOf) {
+            this.request = request;
+            this.reservations = reservations;
+            this.anyOf = anyOf;
+            this.outcomes = new Outcome[reservations.length];
+            this.outstanding = reservations.length;
+        }
+
+        Outcome outcome(int index, Status status, String reservationNumber, String message) {
+            return new Outcome(reservations[index].buildingId(), reservations[index].rooms(), status, reservationNumber, message);
+        }
+    }
+
+    private record Part(Batch batch, int index) {
+    }
+
+    private final Agent agent;
+    private final ScheduledExecutorService scheduler;
+    // parts waiting for their building, by the message id they were sent with
+    private final Map<String, Part> parts = new ConcurrentHashMap<>();
+    private final String partIdPrefix;
+    private final AtomicLong partCount = new AtomicLong();
+    // how long parts are kept after the deadline, a hold made later than that runs out on its own
+    private final long lateReplyMs;
+
+    public BatchReservations(String agentName, Agent agent, ScheduledExecutorService scheduler, long lateReplyMs) {
+        this.agent = agent;
+        this.scheduler = scheduler;
+        this.partIdPrefix = agentName + "-" + Long.toString(System.currentTimeMillis(), 36) + "-batch-";
+        this.lateReplyMs = lateReplyMs;
+    }
+
+    public int pending() {
+        return parts.size();
+    }
+
+    // Sends every reservation of the batch to its building. refusal says why a reservation can't work without
+    // asking the building, or null.
+    public void start(AMQP.BasicProperties request, RequestBatchReservation batchRequest, long deadlineMs,
+                      Function<RequestRoomReservation, String> refusal) {
+        RequestRoomReservation[] reservations = batchRequest.reservations().toArray(new RequestRoomReservation[0]);
+        Batch batch = new Batch(request, reservations, batchRequest.anyOf());
+        String[] partIds = new String[reservations.length];
+
+        for (int i = 0; i < reservations.length; i++) {
+            RequestRoomReservation reservation = reservations[i];
+            String refused = reservation.buildingId() == null ? "No building given" : refusal.apply(reservation);
+            if (refused != null) {
+                failed(batch, i, refused);
+                continue;
+            }
+            partIds[i] = partIdPrefix + Long.toString(partCount.incrementAndGet(), 36);
+            parts.put(partIds[i], new Part(batch, i));
+        }
+
+        // armed before anything is sent, replies may come back right away
+        synchronized (batch) {
+            if (!batch.replied) batch.deadline = scheduler.schedule(() -> expire(batch, partIds), deadlineMs, TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < reservations.length; i++) {
+            if (partIds[i] == null) continue;
+            try {
+                agent.reserve(partIds[i], reservations[i], request);
+            } catch (IOException | RuntimeException e) {
+                parts.remove(partIds[i]);
+                failed(batch, i, "Failed to send the request: " + e.getMessage());
+            }
+        }
+    }
+
+    // A building made the hold. Returns false when the message id isn't one of a batch.
+    public boolean reserved(String partId, String reservationNumber) {
+        Part part = partId == null ? null : parts.remove(partId);
+        if (part == null) return false;
+        Batch batch = part.batch();
+
+        boolean keep;
+        ReplyBatchReservation reply = null;
+        synchronized (batch) {
+            // too late for the customer to hear about it, or an any-of that another building won already
+            keep = !batch.replied && !batch.won;
+            batch.outcomes[part.index()] = batch.outcome(part.index(), keep ? Status.RESERVED : Status.RELEASED, reservationNumber, null);
+            batch.outstanding--;
+            if (keep && batch.anyOf) batch.won = true;
+            if (!batch.replied && (batch.won || batch.outstanding == 0)) reply = replyOf(batch);
+        }
+        if (!keep) release(batch, reservationNumber);
+        send(batch, reply);
+        return true;
+    }
+
+    // A building refused, or the request couldn't be delivered. Returns false when the message id isn't one of a batch.
+    public boolean failed(String partId, String message) {
+        Part part = partId == null ? null : parts.remove(partId);
+        if (part == null) return false;
+        failed(part.batch(), part.index(), message);
+        return true;
+    }
+
+    private void failed(Batch batch, int index, String message) {
+        ReplyBatchReservation reply = null;
+        synchronized (batch) {
+            batch.outcomes[index] = batch.outcome(index, Status.FAILED, null, message);
+            batch.outstanding--;
+            if (!batch.replied && batch.outstanding == 0) reply = replyOf(batch);
+        }
+        send(batch, reply);
+    }
+
+    // the deadline is up: the customer hears about what came back so far, parts that still answer are released
+    private void expire(Batch batch, String[] partIds) {
+        ReplyBatchReservation reply = null;
+        synchronized (batch) {
+            if (!batch.replied) reply = replyOf(batch);
+        }
+        send(batch, reply);
+        scheduler.schedule(() -> {
+            for (String partId : partIds) {
+                if (partId != null) parts.remove(partId);
+            }
+        }, lateReplyMs, TimeUnit.MILLISECONDS);
+    }
+
+    // called with the batch locked, parts without an answer are RELEASED once an any-of is won, TIMED_OUT otherwise
+    private ReplyBatchReservation replyOf(Batch batch) {
+        batch.replied = true;
+        if (batch.deadline != null) batch.deadline.cancel(false);
+        Outcome[] outcomes = Arrays.copyOf(batch.outcomes, batch.outcomes.length);
+        for (int i = 0; i < outcomes.length; i++) {
+            if (outcomes[i] == null) outcomes[i] = batch.outcome(i, batch.won ? Status.RELEASED : Status.TIMED_OUT, null, null);
+        }
+        return new ReplyBatchReservation(Arrays.asList(outcomes), batch.anyOf);
+    }
+
+    private void send(Batch batch, ReplyBatchReservation reply) {
+        if (reply == null) return;
+        try {
+            agent.reply(batch.request, reply);
+        } catch (IOException | RuntimeException e) {
+            Log.error(ANSI_RED, "Failed to reply to batch {}: {}", batch.request.getMessageId(), e.getMessage());
+        }
+    }
+
+    private void release(Batch batch, String reservationNumber) {
+        try {
+            agent.release(reservationNumber, batch.request);
+        } catch (IOException | RuntimeException e) {
+            // the hold runs out on its own
+            Log.error(ANSI_RED, "Failed to release {}: {}", reservationNumber, e.getMessage());
+        }
+    }
+}
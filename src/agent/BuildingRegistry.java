@@ -0,0 +1,123 @@
+package src.agent;
+
+import src.codec.MessageCodecs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The buildings a rental agent knows about, kept alive by their pings.
+// A ping only refreshes the last seen time of its building, which is a single map write. The list handed to
+// customers is an immutable snapshot that is replaced when a building joins, dies or stays silent for longer
+// than the ttl, and each snapshot keeps its own serialized form, so a list request doesn't serialize anything.
+public class BuildingRegistry {
+
+    public static final class Snapshot {
+        private final long version;
+        private final List<String> buildingIds;
+        private volatile byte[] encoded;
+
+        private Snapshot(long version, List<String> buildingIds) {
+            this.version = version;
+            this.buildingIds = buildingIds;
+        }
+
+        public long version() {
+            return version;
+        }
+
+        public List<String> buildingIds() {
+            return buildingIds;
+        }
+
+        public boolean contains(String buildingId) {
+            return buildingIds.contains(buildingId);
+        }
+
+        // the list as customers print it, always JSON, serialized once per version
+        public byte[] encoded() throws IOException {
+            byte[] bytes = encoded;
+            if (bytes == null) {
+                // racing threads serialize the same list, either result can be kept
+                bytes = MessageCodecs.JSON.encode(buildingIds);
+                encoded = bytes;
+            }
+            return bytes;
+        }
+    }
+
+    private final long ttlMs;
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private volatile Snapshot snapshot = new Snapshot(0, List.of());
+
+    public BuildingRegistry(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    public long ttlMs() {
+        return ttlMs;
+    }
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    public boolean isAlive(String buildingId) {
+        return lastSeen.containsKey(buildingId);
+    }
+
+    // Refreshes a building, returns true when it wasn't listed yet.
+    public boolean seen(String buildingId) {
+        if (lastSeen.put(buildingId, now()) != null) return false;
+
+        // a new building, membership changes are rare so they take the lock
+        synchronized (this) {
+            // expired or removed again in the meantime, or already added by a racing ping
+            if (!lastSeen.containsKey(buildingId) || snapshot.contains(buildingId)) return false;
+
+            List<String> buildingIds = new ArrayList<>(snapshot.buildingIds);
+            buildingIds.add(buildingId);
+            publish(buildingIds);
+            return true;
+        }
+    }
+
+    // Takes a building off the list, returns false if it wasn't listed.
+    public synchronized boolean remove(String buildingId) {
+        lastSeen.remove(buildingId);
+        if (!snapshot.contains(buildingId)) return false;
+
+        List<String> buildingIds = new ArrayList<>(snapshot.buildingIds);
+        buildingIds.remove(buildingId);
+        publish(buildingIds);
+        return true;
+    }
+
+    // Takes off every building that hasn't pinged within the ttl and returns them.
+    public synchronized List<String> expire() {
+        long cutoff = now() - ttlMs;
+        List<String> expired = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : lastSeen.entrySet()) {
+            // a ping that lands between the check and the removal changes the value, so the building stays
+            if (entry.getValue() < cutoff && lastSeen.remove(entry.getKey(), entry.getValue())) {
+                expired.add(entry.getKey());
+            }
+        }
+        if (expired.isEmpty()) return expired;
+
+        List<String> buildingIds = new ArrayList<>(snapshot.buildingIds);
+        buildingIds.removeAll(expired);
+        publish(buildingIds);
+        return expired;
+    }
+
+    private void publish(List<String> buildingIds) {
+        snapshot = new Snapshot(snapshot.version + 1, List.copyOf(buildingIds));
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+}
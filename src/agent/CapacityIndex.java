@@ -0,0 +1,112 @@
+package src.agent;
+
+import src.codec.MessageCodec;
+import src.messages.ReplyBuildingPing;
+import src.messages.ReplyBuildingSearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Buildings ordered by their free rooms, as the pings report them, to answer "at least N free rooms" searches.
+// The buildings sit in a skip list sorted by free rooms, most first, so the matches of a search are a prefix of
+// it and a page is found by walking that prefix, no sorting or filtering of the whole portfolio per search.
+// A ping moves its building in the list only when its count changed, and every such change bumps the version.
+// Encoded replies are kept per version, the same search between two changes isn't serialized again.
+public class CapacityIndex {
+
+    private record Entry(String buildingId, int freeRooms, long pingVersion) {
+    }
+
+    private static final Comparator<Entry> MOST_ROOMS_FIRST = Comparator.comparingInt(Entry::freeRooms).reversed()
+            .thenComparing(Entry::buildingId);
+
+    private record Query(int minRooms, int pageSize, int page, String contentType) {
+    }
+
+    // encoded replies of one version of the index
+    private record Replies(long version, Map<Query, byte[]> byQuery) {
+    }
+
+    // upper bound of cached replies per version, the cache starts over when it is reached
+    private static final int MAX_CACHED_REPLIES = 1024;
+
+    private final NavigableSet<Entry> byFreeRooms = new ConcurrentSkipListSet<>(MOST_ROOMS_FIRST);
+    private final Map<String, Entry> byBuilding = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Replies replies = new Replies(0, new ConcurrentHashMap<>());
+
+    public void update(ReplyBuildingPing ping) {
+        // pings of buildings that don't report their rooms can't be searched for
+        if (ping.capacity() <= 0) return;
+        // the building's own entry is swapped under its map entry, so pings of one building don't interleave
+        byBuilding.compute(ping.nameOfBuilding(), (buildingId, known) -> {
+            if (known != null) {
+                // a ping that was overtaken by a newer one
+                if (known.pingVersion() >= ping.version()) return known;
+                // the same count, the building stays where it is, the skip list only compares rooms and name
+                if (known.freeRooms() == ping.availableRooms()) return new Entry(buildingId, known.freeRooms(), ping.version());
+            }
+            Entry fresh = new Entry(buildingId, ping.availableRooms(), ping.version());
+            byFreeRooms.add(fresh);
+            if (known != null) byFreeRooms.remove(known);
+            version.incrementAndGet();
+            return fresh;
+        });
+    }
+
+    public void remove(String buildingId) {
+        byBuilding.computeIfPresent(buildingId, (ignore, known) -> {
+            byFreeRooms.remove(known);
+            version.incrementAndGet();
+            return null;
+        });
+    }
+
+    public long version() {
+        return version.get();
+    }
+
+    public int size() {
+        return byBuilding.size();
+    }
+
+    // One page of the buildings with at least minRooms free, most free rooms first, encoded with the codec.
+    public byte[] search(int minRooms, int pageSize, int page, MessageCodec codec) throws IOException {
+        long current = version.get();
+        Replies cached = replies;
+        if (cached.version() != current) {
+            // a racing search may install the same version, either map can be kept
+            cached = new Replies(current, new ConcurrentHashMap<>());
+            replies = cached;
+        }
+
+        Query query = new Query(minRooms, pageSize, page, codec.contentType());
+        byte[] encoded = cached.byQuery().get(query);
+        if (encoded != null) return encoded;
+
+        encoded = codec.encode(page(minRooms, pageSize, page, current));
+        if (cached.byQuery().size() >= MAX_CACHED_REPLIES) cached.byQuery().clear();
+        cached.byQuery().put(query, encoded);
+        return encoded;
+    }
+
+    // walks the prefix of buildings with enough rooms, keeps the ones on the page and counts the rest
+    private ReplyBuildingSearch page(int minRooms, int pageSize, int page, long atVersion) {
+        long first = (long) page * pageSize;
+        List<ReplyBuildingSearch.Match> matches = new ArrayList<>(pageSize);
+        int count = 0;
+        for (Entry entry : byFreeRooms) {
+            if (entry.freeRooms() < minRooms) break;
+            if (count >= first && matches.size() < pageSize) matches.add(new ReplyBuildingSearch.Match(entry.buildingId(), entry.freeRooms()));
+            count++;
+        }
+        return new ReplyBuildingSearch(matches, page, count, atVersion);
+    }
+}
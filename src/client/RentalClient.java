@@ -0,0 +1,258 @@
+package src.client;
+
+import com.rabbitmq.client.*;
+import src.codec.MessageCodec;
+import src.codec.MessageCodecs;
+import src.logging.Log;
+import src.messages.*;
+import src.metrics.Metrics;
+import src.runtime.AckManager;
+import src.runtime.ExecutionMode;
+import src.transport.MessageChannel;
+import src.transport.Transport;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static src.messages.MessageType.*;
+import static src.utils.ANSIColors.*;
+import static src.utils.Common.*;
+import static src.utils.Config.*;
+
+// Programmatic customer. Every request returns a future that is completed by the reply with the request's
+// message id as correlation id, failed with a RentalException when the answer is an error, or with a
+// TimeoutException when nothing comes back in time. Any number of requests can be in flight on one connection.
+// Replies come to a personal queue named after the customer, or with direct reply-to to the broker's
+// amq.rabbitmq.reply-to pseudo queue, which needs no queue at all. The customer is identified by its name,
+// sent as the app id, not by where the replies go.
+public class RentalClient implements AutoCloseable {
+    private static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+
+    private record Pending(MessageType expectedReply, CompletableFuture<Object> future) {
+    }
+
+    private final String name;
+    private final boolean directReplyTo;
+    private final long timeoutMs;
+    private final MessageCodec codec = MessageCodecs.configured();
+    private final ExecutionMode execution = ExecutionMode.byName(THREADS);
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    // message ids are <name>-<start time>-<counter>, unique across restarts of a customer with the same name
+    private final String messageIdPrefix;
+    private final AtomicLong messageCount = new AtomicLong();
+    // counts replies and times every request until its reply
+    private final Metrics metrics;
+    private final LongAdder timeouts;
+    private final MessageDispatcher dispatcher = new MessageDispatcher()
+            .on(REPLY_BUILDINGS_LIST, this::completeBuildingsList)
+            .on(REPLY_ROOM_RESERVATION, ReplyRoomReservation.class, this::complete)
+            .on(REPLY_CONFIRM_RESERVATION, ReplyConfirmReservation.class, this::complete)
+            .on(REPLY_CANCEL_RESERVATION, ReplyCancelReservation.class, this::complete)
+            .on(REPLY_BUILDING_SEARCH, ReplyBuildingSearch.class, this::complete)
+            .on(REPLY_BATCH_RESERVATION, ReplyBatchReservation.class, this::complete)
+            .on(REPLY_EXECUTION_ERROR, ReplyExecutionError.class, this::fail)
+            .on(REPLY_RESERVATION_EXPIRED, ReplyReservationExpired.class, this::expired);
+
+    private Transport transport;
+    private MessageChannel channel;
+    private AckManager acks;
+    private String replyTo;
+    private volatile Consumer<ReplyReservationExpired> expiryListener = ignore -> {
+    };
+
+    public RentalClient(String name, boolean directReplyTo, long timeoutMs) {
+        this.name = name;
+        this.directReplyTo = directReplyTo;
+        this.timeoutMs = timeoutMs;
+        this.scheduler = execution.newScheduler(name + "-timer");
+        this.messageIdPrefix = name + "-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+        this.metrics = new Metrics("Customer", name, "request->reply").gauge("requests.inFlight", pending::size);
+        this.timeouts = metrics.counter("timeouts");
+    }
+
+    public RentalClient connect() throws IOException, TimeoutException {
+        return connect(Transport.connect(name, execution));
+    }
+
+    // the client closes the transport when it is closed
+    public RentalClient connect(Transport transport) throws IOException {
+        this.transport = transport;
+        channel = transport.createChannel();
+        channel.addReturnListener(undeliveredMessage -> {
+            metrics.returned();
+            failUndelivered(undeliveredMessage.getProperties());
+        });
+        if (METRICS_JMX) metrics.registerMBean();
+        metrics.dumpEvery(scheduler, METRICS_DUMP_MS);
+        channel.exchangeDeclare(EXCHANGE_CUSTOMER_REQUEST, BuiltinExchangeType.DIRECT);
+
+        if (directReplyTo) {
+            // replies to the pseudo queue have to be consumed with auto ack, on the channel that publishes the requests
+            replyTo = DIRECT_REPLY_TO;
+            channel.basicConsume(DIRECT_REPLY_TO, true, this::handleReply);
+        } else {
+            replyTo = name;
+            channel.queueDeclare(name, false, false, false, AckManager.deadLetterArguments(channel));
+            channel.basicQos(PREFETCH);
+            acks = new AckManager(channel, ACK_BATCH_SIZE).start(scheduler, ACK_WINDOW_MS);
+            channel.basicConsume(name, false, this::handleReply);
+        }
+        return this;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    public int inFlight() {
+        return pending.size();
+    }
+
+    // called for every hold of this customer that ran out before it was confirmed
+    public void onExpiry(Consumer<ReplyReservationExpired> listener) {
+        this.expiryListener = listener;
+    }
+
+    // REQUESTS
+
+    public CompletableFuture<List<String>> buildings() {
+        return request(REQUEST_BUILDINGS_LIST, name, REPLY_BUILDINGS_LIST);
+    }
+
+    // buildings with at least minRooms free rooms as of their latest ping, most first, page counts from 0
+    public CompletableFuture<ReplyBuildingSearch> search(int minRooms, int pageSize, int page) {
+        return request(REQUEST_BUILDING_SEARCH, new RequestBuildingSearch(minRooms, pageSize, page), REPLY_BUILDING_SEARCH);
+    }
+
+    public CompletableFuture<ReplyRoomReservation> reserve(String buildingId, int numberOfRooms) {
+        return request(REQUEST_ROOM_RESERVATION, new RequestRoomReservation(numberOfRooms, buildingId), REPLY_ROOM_RESERVATION);
+    }
+
+    // the rooms for the nights from check-in to the night before check-out
+    public CompletableFuture<ReplyRoomReservation> reserve(String buildingId, int numberOfRooms, LocalDate checkIn, LocalDate checkOut) {
+        return request(REQUEST_ROOM_RESERVATION, new RequestRoomReservation(numberOfRooms, buildingId, checkIn.toString(), checkOut.toString()), REPLY_ROOM_RESERVATION);
+    }
+
+    // Holds in every building of the batch, asked all at once. The reply has an outcome per reservation, in order,
+    // which may be FAILED or, past the deadline, TIMED_OUT for some; deadlineMs 0 leaves the deadline to the agent.
+    public CompletableFuture<ReplyBatchReservation> reserveAll(List<RequestRoomReservation> reservations, long deadlineMs) {
+        return request(REQUEST_BATCH_RESERVATION, new RequestBatchReservation(reservations, false, deadlineMs), REPLY_BATCH_RESERVATION);
+    }
+
+    // The rooms in whichever of the buildings has them first, the holds the other buildings made are released
+    // again. The one outcome that is RESERVED has the reservation number, there is none when all of them failed.
+    public CompletableFuture<ReplyBatchReservation> reserveAny(List<String> buildingIds, int numberOfRooms, long deadlineMs) {
+        List<RequestRoomReservation> reservations = buildingIds.stream().map(buildingId -> new RequestRoomReservation(numberOfRooms, buildingId)).toList();
+        return request(REQUEST_BATCH_RESERVATION, new RequestBatchReservation(reservations, true, deadlineMs), REPLY_BATCH_RESERVATION);
+    }
+
+    public CompletableFuture<ReplyConfirmReservation> confirm(String reservationNumber) {
+        return request(REQUEST_CONFIRM_RESERVATION, new RequestConfirmReservation(reservationNumber), REPLY_CONFIRM_RESERVATION);
+    }
+
+    public CompletableFuture<ReplyCancelReservation> cancel(String reservationNumber) {
+        return request(REQUEST_CANCEL_RESERVATION, new RequestCancelReservation(reservationNumber), REPLY_CANCEL_RESERVATION);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> request(MessageType type, Object request, MessageType expectedReply) {
+        String messageId = messageIdPrefix + Long.toString(messageCount.incrementAndGet(), 36);
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        pending.put(messageId, new Pending(expectedReply, future));
+        long sent = System.nanoTime();
+        future.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((reply, error) -> {
+            pending.remove(messageId);
+            if (error == null) metrics.completed(type, sent);
+            else if (error instanceof TimeoutException) timeouts.increment();
+            else metrics.failed(type);
+        });
+
+        try {
+            AMQP.BasicProperties props = MessageTemplates.of(type, codec, replyTo).builder()
+                    .messageId(messageId)
+                    .appId(name)
+                    .build();
+            // mandatory, so a request nobody consumes fails right away instead of timing out
+            channel.basicPublish(EXCHANGE_CUSTOMER_REQUEST, KEY_CUSTOMER_REQUEST, true, props, codec.encode(request));
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return (CompletableFuture<T>) future;
+    }
+
+    // REPLIES
+
+    private void handleReply(String consumerTag, Delivery delivery) {
+        try {
+            metrics.received(MessageType.of(delivery.getProperties()));
+            if (!dispatcher.dispatch(consumerTag, delivery)) {
+                Log.warn(ANSI_YELLOW, "Received a message without header, further action unknown");
+            }
+            if (acks != null) acks.ack(delivery);
+        } catch (Exception err) {
+            Log.error(ANSI_RED, "An error occurred before acknowledging: {}", err);
+            if (acks != null) acks.fail(delivery);
+        }
+    }
+
+    private void completeBuildingsList(String consumerTag, Delivery delivery) throws IOException {
+        // the list is always JSON, whatever codec the request was in
+        complete(consumerTag, delivery, MessageCodecs.JSON.decode(delivery.getBody(), List.class));
+    }
+
+    private void complete(String consumerTag, Delivery delivery, Object reply) {
+        Pending request = pendingFor(delivery);
+        if (request == null) return;
+
+        MessageType type = MessageType.of(delivery.getProperties());
+        if (type != request.expectedReply()) {
+            request.future().completeExceptionally(new IllegalStateException("Expected " + request.expectedReply() + " but got " + type));
+        } else {
+            request.future().complete(reply);
+        }
+    }
+
+    private void fail(String consumerTag, Delivery delivery, ReplyExecutionError error) {
+        metrics.errorReply();
+        Pending request = pendingFor(delivery);
+        if (request != null) request.future().completeExceptionally(new RentalException(error.errorMessage()));
+    }
+
+    private void expired(String consumerTag, Delivery delivery, ReplyReservationExpired expiry) {
+        expiryListener.accept(expiry);
+    }
+
+    // replies to requests that timed out, or that were delivered twice, have nobody waiting for them
+    private Pending pendingFor(Delivery delivery) {
+        String correlationId = delivery.getProperties().getCorrelationId();
+        return correlationId == null ? null : pending.remove(correlationId);
+    }
+
+    private void failUndelivered(AMQP.BasicProperties props) {
+        Pending request = props.getMessageId() == null ? null : pending.remove(props.getMessageId());
+        if (request != null) request.future().completeExceptionally(new RentalException("No rental agent is consuming requests"));
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Pending request : pending.values()) request.future().cancel(false);
+        if (acks != null) acks.close();
+        scheduler.shutdownNow();
+        if (transport != null) transport.close();
+    }
+}
@@ -0,0 +1,10 @@
+package src.client;
+
+// A request the building or the rental agent answered with an error, the message is theirs.
+public class RentalException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public RentalException(String message) {
+        super(message);
+    }
+}
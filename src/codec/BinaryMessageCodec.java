@@ -0,0 +1,358 @@
+package src.codec;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.RecordComponent;
+import java.lang.reflect.Type;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+
+// Compact binary format for the message records.
+// Layout: one schema VERSION byte, then the record components in declaration order, no field names.
+// ints and longs are zigzag varints, strings and lists are prefixed with (length + 1) so that 0 means null,
+// booleans are a single byte, enums are their name and nested records are written inline.
+// A List or Collection field decodes into an ArrayList, a Set into a LinkedHashSet, a SortedSet into a TreeSet.
+// The layout of each record class is worked out once and cached.
+public class BinaryMessageCodec implements MessageCodec {
+    public static final String CONTENT_TYPE = "application/x-rentals-binary";
+    public static final byte VERSION = 1;
+
+    private static final ClassValue<Schema> SCHEMAS = new ClassValue<>() {
+        @Override
+        protected Schema computeValue(Class<?> type) {
+            return Schema.of(type);
+        }
+    };
+
+    // grows per thread when a message doesn't fit, so steady state encoding doesn't allocate scratch space
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(256));
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] encode(Object message) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        while (true) {
+            buffer.clear();
+            try {
+                encode(message, buffer);
+                return Arrays.copyOf(buffer.array(), buffer.position());
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() << 1);
+                buffers.set(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void encode(Object message, ByteBuffer into) throws IOException {
+        into.put(VERSION);
+        if (message instanceof String text) {
+            writeString(into, text);
+        } else {
+            writeRecord(into, SCHEMAS.get(message.getClass()), message);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] body, Class<T> type) throws IOException {
+        ByteBuffer in = open(body);
+        try {
+            if (type == String.class) return type.cast(readString(in));
+            return type.cast(readRecord(in, SCHEMAS.get(type)));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated " + type.getSimpleName() + " message", e);
+        }
+    }
+
+    @Override
+    public String readField(byte[] body, Class<?> type, String field) throws IOException {
+        ByteBuffer in = open(body);
+        try {
+            for (Component component : SCHEMAS.get(type).components) {
+                if (component.name.equals(field) && component.kind == Kind.STRING) return readString(in);
+                skip(in, component);
+            }
+            return null;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated " + type.getSimpleName() + " message", e);
+        }
+    }
+
+    private static ByteBuffer open(byte[] body) throws IOException {
+        if (body.length == 0 || body[0] != VERSION) {
+            throw new IOException("Unsupported binary message version " + (body.length == 0 ? "(empty body)" : body[0]));
+        }
+        return ByteBuffer.wrap(body, 1, body.length - 1);
+    }
+
+    // WRITING
+
+    private static void writeRecord(ByteBuffer out, Schema schema, Object record) throws IOException {
+        for (Component component : schema.components) {
+            write(out, component, component.get(record));
+        }
+    }
+
+    private static void write(ByteBuffer out, Component component, Object value) throws IOException {
+        switch (component.kind) {
+            case STRING -> writeString(out, (String) value);
+            case INT, LONG -> writeVarLong(out, zigzag(value == null ? 0 : ((Number) value).longValue()));
+            case BOOLEAN -> out.put((byte) (Boolean.TRUE.equals(value) ? 1 : 0));
+            case ENUM -> writeString(out, value == null ? null : ((Enum<?>) value).name());
+            case LIST -> {
+                if (value == null) {
+                    writeVarLong(out, 0);
+                    return;
+                }
+                Collection<?> list = (Collection<?>) value;
+                writeVarLong(out, list.size() + 1L);
+                for (Object element : list) write(out, component.element, element);
+            }
+            case RECORD -> {
+                out.put((byte) (value == null ? 0 : 1));
+                if (value != null) writeRecord(out, component.schema(), value);
+            }
+        }
+    }
+
+    private static void writeString(ByteBuffer out, String value) {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        writeVarLong(out, utf8Length(value) + 1L);
+        // encode by hand instead of getBytes(), which would allocate a copy per string
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?'); // unpaired surrogate, same as String.getBytes
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) length += 1;
+            else if (c < 0x800) length += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) length += 1;
+            else length += 3;
+        }
+        return length;
+    }
+
+    private static void writeVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    // READING
+
+    private static Object readRecord(ByteBuffer in, Schema schema) throws IOException {
+        Object[] values = new Object[schema.components.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = read(in, schema.components[i]);
+        }
+        return schema.create(values);
+    }
+
+    private static Object read(ByteBuffer in, Component component) throws IOException {
+        return switch (component.kind) {
+            case STRING -> readString(in);
+            case INT -> (int) unzigzag(readVarLong(in));
+            case LONG -> unzigzag(readVarLong(in));
+            case BOOLEAN -> in.get() != 0;
+            case ENUM -> {
+                String name = readString(in);
+                yield name == null ? null : component.enumValue(name);
+            }
+            case LIST -> {
+                long size = readLength(in, "List");
+                if (size < 0) yield null;
+                Collection<Object> list = component.newCollection((int) size);
+                for (long i = 0; i < size; i++) list.add(read(in, component.element));
+                yield list;
+            }
+            case RECORD -> in.get() == 0 ? null : readRecord(in, component.schema());
+        };
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        long length = readLength(in, "String");
+        if (length < 0) return null;
+        String value = new String(in.array(), in.arrayOffset() + in.position(), (int) length, StandardCharsets.UTF_8);
+        in.position(in.position() + (int) length);
+        return value;
+    }
+
+    // A string or list length, -1 for null. Every byte of a string and every element of a list takes at least one
+    // byte, so a length past the end of the message is corrupt and is turned away before anything is allocated.
+    private static long readLength(ByteBuffer in, String what) throws IOException {
+        long length = readVarLong(in) - 1;
+        if (length < -1 || length > in.remaining()) throw new IOException(what + " of length " + length + " doesn't fit in the message");
+        return length;
+    }
+
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void skip(ByteBuffer in, Component component) throws IOException {
+        switch (component.kind) {
+            case STRING, ENUM -> {
+                long length = readLength(in, "String");
+                if (length > 0) in.position(in.position() + (int) length);
+            }
+            case INT, LONG -> readVarLong(in);
+            case BOOLEAN -> in.get();
+            case LIST -> {
+                long size = readLength(in, "List");
+                for (long i = 0; i < size; i++) skip(in, component.element);
+            }
+            case RECORD -> {
+                if (in.get() != 0) {
+                    for (Component nested : component.schema().components) skip(in, nested);
+                }
+            }
+        }
+    }
+
+    // SCHEMA
+
+    private enum Kind {STRING, INT, LONG, BOOLEAN, ENUM, LIST, RECORD}
+
+    private static final class Schema {
+        private final Component[] components;
+        private final MethodHandle constructor;
+
+        private Schema(Component[] components, MethodHandle constructor) {
+            this.components = components;
+            this.constructor = constructor;
+        }
+
+        static Schema of(Class<?> type) {
+            if (!type.isRecord()) throw new IllegalArgumentException(type.getName() + " is not a message record");
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                RecordComponent[] recordComponents = type.getRecordComponents();
+                Component[] components = new Component[recordComponents.length];
+                Class<?>[] parameterTypes = new Class<?>[recordComponents.length];
+                for (int i = 0; i < recordComponents.length; i++) {
+                    RecordComponent rc = recordComponents[i];
+                    parameterTypes[i] = rc.getType();
+                    components[i] = Component.of(rc.getName(), rc.getType(), rc.getGenericType(), lookup.unreflect(rc.getAccessor()));
+                }
+                Constructor<?> canonical = type.getDeclaredConstructor(parameterTypes);
+                MethodHandle constructor = lookup.unreflectConstructor(canonical).asSpreader(Object[].class, parameterTypes.length);
+                return new Schema(components, constructor);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("Cannot build a binary schema for " + type.getName(), e);
+            }
+        }
+
+        Object create(Object[] values) throws IOException {
+            try {
+                return constructor.invoke(values);
+            } catch (Throwable e) {
+                throw new IOException("Cannot create message from binary body", e);
+            }
+        }
+    }
+
+    private record Component(String name, Kind kind, Class<?> type, MethodHandle accessor, Component element) {
+
+        static Component of(String name, Class<?> type, Type genericType, MethodHandle accessor) {
+            if (type == String.class) return new Component(name, Kind.STRING, type, accessor, null);
+            if (type == int.class || type == Integer.class) return new Component(name, Kind.INT, type, accessor, null);
+            if (type == long.class || type == Long.class) return new Component(name, Kind.LONG, type, accessor, null);
+            if (type == boolean.class || type == Boolean.class) return new Component(name, Kind.BOOLEAN, type, accessor, null);
+            if (type.isEnum()) return new Component(name, Kind.ENUM, type, accessor, null);
+            if (type.isRecord()) return new Component(name, Kind.RECORD, type, accessor, null);
+            if (Collection.class.isAssignableFrom(type) && genericType instanceof ParameterizedType parameterized
+                    && parameterized.getActualTypeArguments()[0] instanceof Class<?> elementType) {
+                return new Component(name, Kind.LIST, type, accessor, of(null, elementType, elementType, null));
+            }
+            throw new IllegalArgumentException("Unsupported message field " + name + " of type " + genericType);
+        }
+
+        Object get(Object record) throws IOException {
+            try {
+                return accessor.invoke(record);
+            } catch (Throwable e) {
+                throw new IOException("Cannot read field " + name, e);
+            }
+        }
+
+        Schema schema() {
+            return SCHEMAS.get(type);
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Object enumValue(String constant) {
+            return Enum.valueOf((Class) type, constant);
+        }
+
+        @SuppressWarnings("unchecked")
+        Collection<Object> newCollection(int size) throws IOException {
+            if (type.isAssignableFrom(ArrayList.class)) return new ArrayList<>(size); // List, Collection
+            if (type.isAssignableFrom(LinkedHashSet.class)) return LinkedHashSet.newLinkedHashSet(size); // Set
+            if (type.isAssignableFrom(TreeSet.class)) return new TreeSet<>(); // SortedSet, NavigableSet
+            if (type.isInterface()) throw new IOException("No collection to decode a " + type.getName() + " into");
+            try {
+                return (Collection<Object>) type.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IOException("Cannot create " + type.getName(), e);
+            }
+        }
+    }
+}
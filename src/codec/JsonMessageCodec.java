@@ -0,0 +1,51 @@
+package src.codec;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedOutputStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// The original wire format. One shared ObjectMapper, it is thread safe once configured.
+public class JsonMessageCodec implements MessageCodec {
+    public static final String CONTENT_TYPE = "application/json";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    @Override
+    public String contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] encode(Object message) throws IOException {
+        return mapper.writeValueAsBytes(message);
+    }
+
+    @Override
+    public void encode(Object message, ByteBuffer into) throws IOException {
+        mapper.writeValue(new ByteBufferBackedOutputStream(into), message);
+    }
+
+    @Override
+    public <T> T decode(byte[] body, Class<T> type) throws IOException {
+        return mapper.readValue(body, type);
+    }
+
+    @Override
+    public String readField(byte[] body, Class<?> type, String field) throws IOException {
+        // streaming parse, stops as soon as the field is found
+        try (JsonParser parser = mapper.getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) return null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (name.equals(field)) return value == JsonToken.VALUE_NULL ? null : parser.getValueAsString();
+                parser.skipChildren();
+            }
+            return null;
+        }
+    }
+}
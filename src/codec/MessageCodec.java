@@ -0,0 +1,22 @@
+package src.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Turns src.messages records into message bodies and back.
+// Which codec a body was written with travels in the contentType property, see MessageCodecs.
+public interface MessageCodec {
+
+    String contentType();
+
+    byte[] encode(Object message) throws IOException;
+
+    // writes into a buffer owned by the caller, starting at its position
+    void encode(Object message, ByteBuffer into) throws IOException;
+
+    <T> T decode(byte[] body, Class<T> type) throws IOException;
+
+    // Reads one top level String field, e.g. buildingId or reservationNumber, without building the record.
+    // Returns null if the body doesn't have the field.
+    String readField(byte[] body, Class<?> type, String field) throws IOException;
+}
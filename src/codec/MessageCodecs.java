@@ -0,0 +1,39 @@
+package src.codec;
+
+import com.rabbitmq.client.AMQP;
+
+import static src.utils.Config.CODEC;
+
+// Codec selection. Publishers use the configured codec and set its content type on the message,
+// receivers pick the codec from the content type, and replies go out in the codec of the request,
+// so deployments with different codecs keep talking to each other.
+public abstract class MessageCodecs {
+    public static final MessageCodec JSON = new JsonMessageCodec();
+    public static final MessageCodec BINARY = new BinaryMessageCodec();
+
+    private static final MessageCodec CONFIGURED = byName(CODEC);
+
+    // the codec of Config.CODEC
+    public static MessageCodec configured() {
+        return CONFIGURED;
+    }
+
+    public static MessageCodec byName(String name) {
+        return switch (name) {
+            case "json" -> JSON;
+            case "binary" -> BINARY;
+            default -> throw new IllegalArgumentException("Unknown codec " + name);
+        };
+    }
+
+    // messages without a content type come from publishers that predate codecs, those are JSON
+    public static MessageCodec forContentType(String contentType) {
+        if (contentType == null || contentType.equals(JsonMessageCodec.CONTENT_TYPE)) return JSON;
+        if (contentType.equals(BinaryMessageCodec.CONTENT_TYPE)) return BINARY;
+        throw new IllegalArgumentException("Unsupported content type " + contentType);
+    }
+
+    public static MessageCodec of(AMQP.BasicProperties properties) {
+        return forContentType(properties.getContentType());
+    }
+}
@@ -0,0 +1,248 @@
+package src.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import src.Building;
+import src.RentalAgent;
+import src.client.RentalClient;
+import src.runtime.ExecutionMode;
+import src.runtime.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static src.utils.Config.*;
+
+// Drives the customer -> rental agent -> building pipeline with simulated customers and reports throughput
+// and latency percentiles per request type, as JSON, so runs can be compared.
+// Starts the buildings and rental agents itself, unless told to use the ones already running, and talks to
+// them over -Drentals.transport: a RabbitMQ broker, or with "memory" everything runs in this JVM.
+// Latency is measured from the moment a request was meant to go out, so in the open loop a backlog shows up
+// in the percentiles instead of slowing the senders down.
+public class LoadGenerator {
+
+    enum Operation {LIST, RESERVE, CONFIRM, CANCEL}
+
+    // reservations of one simulated customer that may still be confirmed or cancelled
+    private record SimulatedCustomer(RentalClient client, ConcurrentLinkedQueue<String> held, ConcurrentLinkedQueue<String> confirmed) {
+    }
+
+    private final ExecutionMode execution = ExecutionMode.byName(THREADS);
+    private final ExecutorService sessions = execution.newExecutor("load-session", Runtime.getRuntime().availableProcessors());
+    private final Operation[] mix = parseMix(LOAD_MIX);
+    private final Map<Operation, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final Map<Operation, LongAdder> errors = new LinkedHashMap<>();
+    private final List<SimulatedCustomer> customers = new ArrayList<>();
+    private List<String> buildings;
+    // requests meant to go out in [measureFrom, measureUntil) are recorded, the ones before are warm up
+    private long measureFrom, measureUntil;
+
+    public static void main(String[] args) {
+        new LoadGenerator().run();
+    }
+
+    public void run() {
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            errors.put(operation, new LongAdder());
+        }
+        // at the debug log level the roles print a line per message, which would measure the console more than
+        // anything else, -Drentals.log.level=info doesn't even format them
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        try {
+            for (int i = 0; i < LOAD_AGENTS; i++) new RentalAgent().run("LoadAgent" + i);
+            // names of this run only, with -Drentals.journal.dir a building never recovers the reservations of an earlier run
+            String run = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+            for (int i = 0; i < LOAD_BUILDINGS; i++) new Building(LOAD_ROOMS).run("Load" + run + "Building" + i);
+            for (int i = 0; i < LOAD_CUSTOMERS; i++) {
+                RentalClient client = new RentalClient("LoadCustomer" + i, CLIENT_DIRECT_REPLY_TO, CLIENT_TIMEOUT_MS).connect();
+                customers.add(new SimulatedCustomer(client, new ConcurrentLinkedQueue<>(), new ConcurrentLinkedQueue<>()));
+            }
+            buildings = awaitBuildings(Math.max(1, LOAD_BUILDINGS));
+
+            long start = System.nanoTime();
+            measureFrom = start + TimeUnit.SECONDS.toNanos(LOAD_WARMUP_S);
+            measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(LOAD_DURATION_S);
+            if (LOAD_OPEN_LOOP) openLoop(start);
+            else closedLoop();
+            awaitInFlight();
+
+            writeResults(report);
+        } catch (IOException | TimeoutException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        System.exit(0);
+    }
+
+    // buildings ping as soon as they start, the list is complete once the agent has heard from all of them
+    private List<String> awaitBuildings(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(CLIENT_TIMEOUT_MS, BUILDING_PING_MS * 2));
+        RentalClient client = customers.get(0).client();
+        while (true) {
+            List<String> found = client.buildings().exceptionally(ignore -> List.of()).join();
+            if (found.size() >= expected) return found;
+            if (System.nanoTime() > deadline) throw new IllegalStateException("Only " + found.size() + " of " + expected + " buildings answered");
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+    }
+
+    // every customer keeps LOAD_CONCURRENCY requests in flight until the run is over
+    private void closedLoop() throws InterruptedException {
+        CountDownLatch finished = new CountDownLatch(customers.size() * LOAD_CONCURRENCY);
+        for (SimulatedCustomer customer : customers) {
+            for (int i = 0; i < LOAD_CONCURRENCY; i++) sessions.execute(() -> nextRequest(customer, finished));
+        }
+        finished.await();
+    }
+
+    private void nextRequest(SimulatedCustomer customer, CountDownLatch finished) {
+        long now = System.nanoTime();
+        if (now >= measureUntil) {
+            finished.countDown();
+            return;
+        }
+        // async, so a request that fails on the spot doesn't grow the stack
+        send(customer, pick(), now).whenCompleteAsync((reply, error) -> nextRequest(customer, finished), sessions);
+    }
+
+    // requests go out on a fixed schedule, round robin over the customers, answered or not
+    private void openLoop(long start) {
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, LOAD_RATE);
+        for (long i = 0; ; i++) {
+            long intended = start + i * periodNanos;
+            if (intended >= measureUntil) return;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            send(customers.get((int) (i % customers.size())), pick(), intended);
+        }
+    }
+
+    private CompletableFuture<?> send(SimulatedCustomer customer, Operation operation, long intended) {
+        RentalClient client = customer.client();
+        CompletableFuture<?> reply;
+        // confirming or cancelling needs a reservation, without one the customer makes one first
+        String number = switch (operation) {
+            case CONFIRM -> customer.held().poll();
+            case CANCEL -> {
+                String confirmed = customer.confirmed().poll();
+                yield confirmed != null ? confirmed : customer.held().poll();
+            }
+            default -> null;
+        };
+        if ((operation == Operation.CONFIRM || operation == Operation.CANCEL) && number == null) operation = Operation.RESERVE;
+
+        switch (operation) {
+            case LIST -> reply = client.buildings();
+            case RESERVE -> {
+                String buildingId = buildings.get(ThreadLocalRandom.current().nextInt(buildings.size()));
+                reply = client.reserve(buildingId, 1).thenAccept(reservation -> customer.held().add(reservation.reservationNumber()));
+            }
+            case CONFIRM -> reply = client.confirm(number).thenAccept(confirmation -> customer.confirmed().add(number));
+            default -> reply = client.cancel(number);
+        }
+
+        Operation sent = operation;
+        return reply.whenComplete((ignore, error) -> {
+            if (intended < measureFrom || intended >= measureUntil) return;
+            if (error == null) latencies.get(sent).record(System.nanoTime() - intended);
+            else errors.get(sent).increment();
+        });
+    }
+
+    private Operation pick() {
+        return mix[ThreadLocalRandom.current().nextInt(mix.length)];
+    }
+
+    // the answers to the last requests still count, wait for them, at most as long as a request may take
+    private void awaitInFlight() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLIENT_TIMEOUT_MS);
+        for (SimulatedCustomer customer : customers) {
+            while (customer.client().inFlight() > 0 && System.nanoTime() < deadline) TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private void writeResults(PrintStream report) throws IOException {
+        double seconds = LOAD_DURATION_S;
+        Map<String, Object> operations = new LinkedHashMap<>();
+        long total = 0, totalErrors = 0;
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies.get(operation);
+            long count = histogram.count();
+            long failed = errors.get(operation).sum();
+            total += count;
+            totalErrors += failed;
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("count", count);
+            result.put("errors", failed);
+            result.put("throughput", count / seconds);
+            result.put("meanUs", histogram.mean() / 1000);
+            result.put("p50Us", histogram.percentile(0.5) / 1000.0);
+            result.put("p99Us", histogram.percentile(0.99) / 1000.0);
+            result.put("p999Us", histogram.percentile(0.999) / 1000.0);
+            result.put("maxUs", histogram.max() / 1000.0);
+            operations.put(operation.name().toLowerCase(), result);
+        }
+
+        Map<String, Object> results = new LinkedHashMap<>();
+        results.put("transport", TRANSPORT);
+        results.put("codec", CODEC);
+        results.put("threads", THREADS);
+        results.put("loop", LOAD_OPEN_LOOP ? "open" : "closed");
+        results.put("rate", LOAD_OPEN_LOOP ? LOAD_RATE : null);
+        results.put("concurrency", LOAD_OPEN_LOOP ? null : LOAD_CONCURRENCY);
+        results.put("buildings", buildings.size());
+        results.put("customers", customers.size());
+        results.put("mix", LOAD_MIX);
+        results.put("warmupS", LOAD_WARMUP_S);
+        results.put("durationS", LOAD_DURATION_S);
+        results.put("requests", total);
+        results.put("errors", totalErrors);
+        results.put("throughput", total / seconds);
+        results.put("operations", operations);
+
+        String json = new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(results);
+        if (LOAD_OUT.isEmpty()) {
+            report.println(json);
+            return;
+        }
+        Files.writeString(Path.of(LOAD_OUT), json);
+        report.printf("%-8s %10s %8s %10s %10s %10s %10s%n", "request", "req/s", "errors", "p50 us", "p99 us", "p99.9 us", "max us");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies.get(operation);
+            report.printf("%-8s %10.1f %8d %10.1f %10.1f %10.1f %10.1f%n", operation.name().toLowerCase(), histogram.count() / seconds, errors.get(operation).sum(),
+                    histogram.percentile(0.5) / 1000.0, histogram.percentile(0.99) / 1000.0, histogram.percentile(0.999) / 1000.0, histogram.max() / 1000.0);
+        }
+        report.println("Results written to " + LOAD_OUT);
+    }
+
+    // "list:10,reserve:40,..." into a table with an entry per unit of weight, picked from at random
+    private static Operation[] parseMix(String mix) {
+        List<Operation> table = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            Operation operation = Operation.valueOf(parts[0].trim().toUpperCase());
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) table.add(operation);
+        }
+        if (table.isEmpty()) throw new IllegalArgumentException("Empty request mix " + mix);
+        return table.toArray(new Operation[0]);
+    }
+}
@@ -0,0 +1,168 @@
+package src.logging;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static src.utils.ANSIColors.ANSI_YELLOW;
+import static src.utils.Config.*;
+
+// Logging of the buildings, rental agents and customers, off the threads that handle the messages.
+// A call checks the level, puts the template and its arguments into a LogBuffer and returns, a background
+// writer formats the entries and prints them in batches, so handlers neither build strings nor wait for
+// the console. When the writer falls behind and the buffer is full, entries are dropped and counted.
+// Templates have {} where an argument goes. An argument that is expensive to compute can be passed as a
+// Supplier, it's only asked when the entry is written.
+// -Drentals.log.level picks the lowest level that is written: the lines per handled message are DEBUG,
+// so "info" turns hot path logging off entirely, down to the level check.
+public final class Log {
+
+    public enum Level {DEBUG, INFO, WARN, ERROR, OFF}
+
+    private static final int THRESHOLD = Level.valueOf(LOG_LEVEL.toUpperCase()).ordinal();
+    // entries handed to the sink in one go
+    private static final int BATCH = 256;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final LogBuffer buffer = new LogBuffer(LOG_BUFFER);
+    private static final LogSink sink = LogSink.byName(LOG_SINK);
+    private static final Thread writer;
+    private static volatile boolean writerParked;
+    // entries before this position are printed
+    private static volatile long printed;
+
+    static {
+        writer = new Thread(Log::write, "log-writer");
+        writer.setDaemon(true);
+        if (THRESHOLD < Level.OFF.ordinal()) writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() >= THRESHOLD;
+    }
+
+    public static boolean isDebugEnabled() {
+        return Level.DEBUG.ordinal() >= THRESHOLD;
+    }
+
+    // entries dropped because the buffer was full
+    public static long dropped() {
+        return buffer.dropped();
+    }
+
+    // waits, up to a second, until everything logged so far is written
+    public static void flush() {
+        if (!writer.isAlive()) return;
+        long logged = buffer.head();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (printed < logged && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    // DEBUG, a line per handled message
+
+    public static void debug(String color, String template) {
+        if (Level.DEBUG.ordinal() >= THRESHOLD) offer(Level.DEBUG, color, template, null, null, null, null);
+    }
+
+    public static void debug(String color, String template, Object a) {
+        if (Level.DEBUG.ordinal() >= THRESHOLD) offer(Level.DEBUG, color, template, a, null, null, null);
+    }
+
+    public static void debug(String color, String template, Object a, Object b) {
+        if (Level.DEBUG.ordinal() >= THRESHOLD) offer(Level.DEBUG, color, template, a, b, null, null);
+    }
+
+    public static void debug(String color, String template, Object a, Object b, Object c) {
+        if (Level.DEBUG.ordinal() >= THRESHOLD) offer(Level.DEBUG, color, template, a, b, c, null);
+    }
+
+    // INFO, starting, stopping and what changes the state of a role
+
+    public static void info(String color, String template) {
+        if (Level.INFO.ordinal() >= THRESHOLD) offer(Level.INFO, color, template, null, null, null, null);
+    }
+
+    public static void info(String color, String template, Object a) {
+        if (Level.INFO.ordinal() >= THRESHOLD) offer(Level.INFO, color, template, a, null, null, null);
+    }
+
+    public static void info(String color, String template, Object a, Object b) {
+        if (Level.INFO.ordinal() >= THRESHOLD) offer(Level.INFO, color, template, a, b, null, null);
+    }
+
+    public static void info(String color, String template, Object a, Object b, Object c) {
+        if (Level.INFO.ordinal() >= THRESHOLD) offer(Level.INFO, color, template, a, b, c, null);
+    }
+
+    // WARN, something unexpected that is taken care of
+
+    public static void warn(String color, String template) {
+        if (Level.WARN.ordinal() >= THRESHOLD) offer(Level.WARN, color, template, null, null, null, null);
+    }
+
+    public static void warn(String color, String template, Object a) {
+        if (Level.WARN.ordinal() >= THRESHOLD) offer(Level.WARN, color, template, a, null, null, null);
+    }
+
+    public static void warn(String color, String template, Object a, Object b) {
+        if (Level.WARN.ordinal() >= THRESHOLD) offer(Level.WARN, color, template, a, b, null, null);
+    }
+
+    // ERROR, goes to stderr
+
+    public static void error(String color, String template) {
+        if (Level.ERROR.ordinal() >= THRESHOLD) offer(Level.ERROR, color, template, null, null, null, null);
+    }
+
+    public static void error(String color, String template, Object a) {
+        if (Level.ERROR.ordinal() >= THRESHOLD) offer(Level.ERROR, color, template, a, null, null, null);
+    }
+
+    public static void error(String color, String template, Object a, Object b) {
+        if (Level.ERROR.ordinal() >= THRESHOLD) offer(Level.ERROR, color, template, a, b, null, null);
+    }
+
+    // any level and any number of arguments, the first three don't need an array
+    public static void log(Level level, String color, String template, Object... args) {
+        if (level.ordinal() < THRESHOLD) return;
+        Object a = args.length > 0 ? args[0] : null;
+        Object b = args.length > 1 ? args[1] : null;
+        Object c = args.length > 2 ? args[2] : null;
+        Object[] more = args.length > LogBuffer.MAX_ARGS ? Arrays.copyOfRange(args, LogBuffer.MAX_ARGS, args.length) : null;
+        offer(level, color, template, a, b, c, more);
+    }
+
+    private static void offer(Level level, String color, String template, Object a, Object b, Object c, Object[] more) {
+        if (buffer.offer(level, color, template, a, b, c, more) && writerParked) LockSupport.unpark(writer);
+    }
+
+    // the writer thread: drains the buffer in batches, reports drops, parks when there is nothing to write
+    private static void write() {
+        StringBuilder message = new StringBuilder(256);
+        long reportedDrops = 0;
+        while (true) {
+            int written = buffer.drain(sink, message, BATCH);
+            long drops = buffer.dropped();
+            if (drops > reportedDrops) {
+                sink.write(System.currentTimeMillis(), Level.WARN, ANSI_YELLOW,
+                        "[log] " + (drops - reportedDrops) + " entries dropped, the buffer of " + buffer.capacity() + " was full");
+                reportedDrops = drops;
+            }
+            sink.flush();
+            printed = buffer.tail();
+            if (written > 0) continue;
+
+            // announce the park before looking once more, a producer either sees the flag or we see its entry
+            writerParked = true;
+            if (buffer.isEmpty()) LockSupport.parkNanos(IDLE_PARK_NANOS);
+            writerParked = false;
+        }
+    }
+}
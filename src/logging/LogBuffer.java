@@ -0,0 +1,147 @@
+package src.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Bounded ring of log entries, filled by any number of threads without locks and emptied by one writer.
+// Every slot has a sequence number that says whose turn it is: a producer claims position p by moving the
+// head from p to p + 1 once the slot's sequence is p, fills the slot and sets the sequence to p + 1, the
+// writer takes the entry once it sees p + 1 and hands the slot to the next lap with p + capacity.
+// A full ring is never waited on, the entry is dropped and counted instead.
+// Slots are allocated once, an entry keeps the template and the arguments, the message is only formatted
+// by the writer.
+class LogBuffer {
+    static final int MAX_ARGS = 3;
+
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final long[] times;
+    private final Log.Level[] levels;
+    private final String[] colors;
+    private final String[] templates;
+    // MAX_ARGS arguments per slot, more go to overflow
+    private final Object[] args;
+    private final Object[][] overflow;
+
+    private final AtomicLong head = new AtomicLong();
+    // only the writer moves the tail
+    private volatile long tail;
+    private final LongAdder dropped = new LongAdder();
+
+    LogBuffer(int requestedCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+        mask = capacity - 1;
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) sequences.set(i, i);
+        times = new long[capacity];
+        levels = new Log.Level[capacity];
+        colors = new String[capacity];
+        templates = new String[capacity];
+        args = new Object[capacity * MAX_ARGS];
+        overflow = new Object[capacity][];
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    // false when the ring is full and the entry was dropped
+    boolean offer(Log.Level level, String color, String template, Object a, Object b, Object c, Object[] more) {
+        long position = head.get();
+        while (true) {
+            long difference = sequences.get((int) position & mask) - position;
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) break;
+                position = head.get();
+            } else if (difference < 0) {
+                dropped.increment();
+                return false;
+            } else {
+                position = head.get();
+            }
+        }
+        int slot = (int) position & mask;
+        times[slot] = System.currentTimeMillis();
+        levels[slot] = level;
+        colors[slot] = color;
+        templates[slot] = template;
+        args[slot * MAX_ARGS] = a;
+        args[slot * MAX_ARGS + 1] = b;
+        args[slot * MAX_ARGS + 2] = c;
+        overflow[slot] = more;
+        // a volatile write, the writer may be about to park and checks for entries after announcing it
+        sequences.set(slot, position + 1);
+        return true;
+    }
+
+    boolean isEmpty() {
+        long position = tail;
+        return sequences.get((int) position & mask) != position + 1;
+    }
+
+    // Formats and hands at most max entries to the sink, only called by the writer. Returns how many there were.
+    int drain(LogSink sink, StringBuilder message, int max) {
+        int drained = 0;
+        long position = tail;
+        while (drained < max) {
+            int slot = (int) position & mask;
+            if (sequences.get(slot) != position + 1) break;
+
+            message.setLength(0);
+            Object[] more = overflow[slot];
+            format(message, templates[slot], args[slot * MAX_ARGS], args[slot * MAX_ARGS + 1], args[slot * MAX_ARGS + 2], more);
+            sink.write(times[slot], levels[slot], colors[slot], message);
+
+            // let go of the arguments before the slot goes back to the producers
+            colors[slot] = null;
+            templates[slot] = null;
+            args[slot * MAX_ARGS] = args[slot * MAX_ARGS + 1] = args[slot * MAX_ARGS + 2] = null;
+            overflow[slot] = null;
+            sequences.lazySet(slot, position + mask + 1);
+            position++;
+            tail = position;
+            drained++;
+        }
+        return drained;
+    }
+
+    // entries before this position are drained
+    long tail() {
+        return tail;
+    }
+
+    long head() {
+        return head.get();
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    // Replaces every {} in the template with the next argument, suppliers are asked for their value here.
+    // An argument that throws while formatting is written as a placeholder, the writer thread has to keep going.
+    private static void format(StringBuilder out, String template, Object a, Object b, Object c, Object[] more) {
+        int argument = 0;
+        int from = 0;
+        while (true) {
+            int at = template.indexOf("{}", from);
+            if (at < 0) break;
+            out.append(template, from, at);
+            Object value = argument < MAX_ARGS ? (argument == 0 ? a : argument == 1 ? b : c)
+                    : more != null && argument - MAX_ARGS < more.length ? more[argument - MAX_ARGS] : "{}";
+            int start = out.length();
+            try {
+                if (value instanceof Supplier<?> supplier) value = supplier.get();
+                out.append(value);
+            } catch (RuntimeException e) {
+                out.setLength(start);
+                out.append("[unformattable: ").append(e).append(']');
+            }
+            argument++;
+            from = at + 2;
+        }
+        out.append(template, from, template.length());
+    }
+}
@@ -0,0 +1,66 @@
+package src.logging;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+import static src.utils.ANSIColors.ANSI_RESET;
+
+// Where the writer puts formatted entries. A sink appends one line per entry to the batch of the stream
+// the entry belongs to, the writer prints a batch with one call.
+public abstract class LogSink {
+    private final StringBuilder out = new StringBuilder();
+    private final StringBuilder err = new StringBuilder();
+
+    // the console as before: each line in the colour of its entry, errors on stderr
+    public static LogSink colored() {
+        return new LogSink() {
+            @Override
+            void append(StringBuilder line, long time, Log.Level level, String color, CharSequence message) {
+                line.append(color).append(message).append(ANSI_RESET);
+            }
+        };
+    }
+
+    // time and level instead of colours, for files and log collectors
+    public static LogSink plain() {
+        DateTimeFormatter format = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+        return new LogSink() {
+            @Override
+            void append(StringBuilder line, long time, Log.Level level, String color, CharSequence message) {
+                format.formatTo(Instant.ofEpochMilli(time), line);
+                line.append(' ').append(level).append(' ').append(message);
+            }
+        };
+    }
+
+    public static LogSink byName(String name) {
+        return switch (name) {
+            case "colored" -> colored();
+            case "plain" -> plain();
+            default -> throw new IllegalArgumentException("Unknown log sink " + name + ", expected colored or plain");
+        };
+    }
+
+    abstract void append(StringBuilder line, long time, Log.Level level, String color, CharSequence message);
+
+    void write(long time, Log.Level level, String color, CharSequence message) {
+        StringBuilder batch = level == Log.Level.ERROR ? err : out;
+        append(batch, time, level, color == null ? "" : color, message);
+        batch.append(System.lineSeparator());
+    }
+
+    // looks System.out up on every flush, so whoever redirects it (like the load generator) still gets the lines
+    void flush() {
+        if (!out.isEmpty()) {
+            System.out.print(out);
+            System.out.flush();
+            out.setLength(0);
+        }
+        if (!err.isEmpty()) {
+            System.err.print(err);
+            System.err.flush();
+            err.setLength(0);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package src.messages;
+
+import com.rabbitmq.client.Delivery;
+import src.codec.MessageCodecs;
+
+import java.io.IOException;
+
+// Dispatch table from message type to handler, replaces the switch over the "class" header.
+// Typed handlers get the message decoded with the codec named by the content type.
+public class MessageDispatcher {
+
+    @FunctionalInterface
+    public interface Handler {
+        void handle(String consumerTag, Delivery delivery) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface TypedHandler<T> {
+        void handle(String consumerTag, Delivery delivery, T message) throws IOException;
+    }
+
+    private final Handler[] handlers = new Handler[MessageType.maxCode() + 1];
+
+    public MessageDispatcher on(MessageType type, Handler handler) {
+        handlers[type.code] = handler;
+        return this;
+    }
+
+    public <T> MessageDispatcher on(MessageType type, Class<T> payloadType, TypedHandler<T> handler) {
+        if (type.payloadType != payloadType) {
+            throw new IllegalArgumentException(type + " carries " + type.payloadType + ", not " + payloadType);
+        }
+        return on(type, (consumerTag, delivery) -> {
+            T message = MessageCodecs.of(delivery.getProperties()).decode(delivery.getBody(), payloadType);
+            handler.handle(consumerTag, delivery, message);
+        });
+    }
+
+    // Returns false for messages without a type, throws for types nobody registered for.
+    public boolean dispatch(String consumerTag, Delivery delivery) throws IOException {
+        MessageType type = MessageType.of(delivery.getProperties());
+        if (type == null) return false;
+
+        Handler handler = handlers[type.code];
+        if (handler == null) throw new IllegalArgumentException("No handler for message type " + type.headerName);
+        handler.handle(consumerTag, delivery);
+        return true;
+    }
+}
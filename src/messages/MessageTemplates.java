@@ -0,0 +1,88 @@
+package src.messages;
+
+import com.rabbitmq.client.AMQP;
+import src.codec.MessageCodec;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Prebuilt, immutable BasicProperties per message type and codec, so publishing doesn't build
+// a header map and a properties object for every message. Properties with a replyTo are cached per
+// reply address as well, a customer or building keeps replying to the same few queues.
+public abstract class MessageTemplates {
+    // set by a rental agent that asks a building on behalf of a customer and takes the reply itself
+    public static final String HEADER_CUSTOMER_REPLY_TO = "customerReplyTo";
+
+    // upper bound of cached reply addresses per codec, the cache starts over when it is reached
+    private static final int MAX_CACHED_REPLY_ADDRESSES = 4096;
+
+    private static final Map<String, AMQP.BasicProperties[]> TEMPLATES = new ConcurrentHashMap<>();
+    private static final Map<String, Map<String, AMQP.BasicProperties[]>> WITH_REPLY_TO = new ConcurrentHashMap<>();
+
+    public static AMQP.BasicProperties of(MessageType type, MessageCodec codec) {
+        return TEMPLATES.computeIfAbsent(codec.contentType(), MessageTemplates::templatesFor)[type.ordinal()];
+    }
+
+    public static AMQP.BasicProperties of(MessageType type, MessageCodec codec, String replyTo) {
+        if (replyTo == null) return of(type, codec);
+
+        Map<String, AMQP.BasicProperties[]> byReplyTo = WITH_REPLY_TO.computeIfAbsent(codec.contentType(), ignore -> new ConcurrentHashMap<>());
+        AMQP.BasicProperties[] cached = byReplyTo.get(replyTo);
+        if (cached == null) {
+            if (byReplyTo.size() >= MAX_CACHED_REPLY_ADDRESSES) byReplyTo.clear();
+            cached = byReplyTo.computeIfAbsent(replyTo, ignore -> new AMQP.BasicProperties[MessageType.values().length]);
+        }
+
+        AMQP.BasicProperties props = cached[type.ordinal()];
+        if (props == null) {
+            // a racing thread may build the same properties, they are equal so either one can win
+            props = of(type, codec).builder().replyTo(replyTo).build();
+            cached[type.ordinal()] = props;
+        }
+        return props;
+    }
+
+    // replies carry the message id of the request they answer, that one can't be cached
+    public static AMQP.BasicProperties of(MessageType type, MessageCodec codec, String replyTo, String correlationId) {
+        AMQP.BasicProperties props = of(type, codec, replyTo);
+        return correlationId == null ? props : props.builder().correlationId(correlationId).build();
+    }
+
+    // The customer a request comes from. Clients send their name as the app id, older customers are known
+    // by their reply queue, which is named after them.
+    public static String senderOf(AMQP.BasicProperties props) {
+        return props.getAppId() != null ? props.getAppId() : props.getReplyTo();
+    }
+
+    // where the customer behind a request gets its replies, which is the reply-to unless an agent asked for it
+    public static String customerReplyTo(AMQP.BasicProperties props) {
+        Object header = props.getHeaders() == null ? null : props.getHeaders().get(HEADER_CUSTOMER_REPLY_TO);
+        return header != null ? header.toString() : props.getReplyTo();
+    }
+
+    // a request sent by a rental agent for a customer: the reply comes back to the agent, the customer owns the result
+    public static AMQP.BasicProperties onBehalfOf(MessageType type, MessageCodec codec, String agentQueue, String messageId, AMQP.BasicProperties customerRequest) {
+        AMQP.BasicProperties template = of(type, codec, agentQueue);
+        Map<String, Object> headers = new HashMap<>(template.getHeaders());
+        headers.put(HEADER_CUSTOMER_REPLY_TO, customerReplyTo(customerRequest));
+        return template.builder()
+                .messageId(messageId)
+                .appId(senderOf(customerRequest))
+                .headers(headers)
+                .build();
+    }
+
+    private static AMQP.BasicProperties[] templatesFor(String contentType) {
+        MessageType[] types = MessageType.values();
+        AMQP.BasicProperties[] templates = new AMQP.BasicProperties[types.length];
+        for (MessageType type : types) {
+            templates[type.ordinal()] = new AMQP.BasicProperties.Builder()
+                    .headers(Map.of(MessageType.HEADER_CLASS, type.headerName))
+                    .type(type.typeCode)
+                    .contentType(contentType)
+                    .build();
+        }
+        return templates;
+    }
+}
@@ -0,0 +1,89 @@
+package src.messages;
+
+import com.rabbitmq.client.AMQP;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Every message the system sends. The compact code travels in the AMQP "type" property and is
+// what receivers dispatch on, the "class" header is still set and read for older publishers.
+// Adding a message type means adding a constant here and registering a handler for it.
+public enum MessageType {
+    REQUEST_BUILDINGS_LIST(1, "RequestBuildingsList", String.class),
+    REPLY_BUILDINGS_LIST(2, "ReplyBuildingsList", null), // raw JSON array of building names
+    REPLY_BUILDING_PING(3, "ReplyBuildingPing", ReplyBuildingPing.class),
+    BUILDING_DEATH(4, "BuildingDeath", String.class),
+    REQUEST_ROOM_RESERVATION(5, "RequestRoomReservation", RequestRoomReservation.class),
+    REPLY_ROOM_RESERVATION(6, "ReplyRoomReservation", ReplyRoomReservation.class),
+    REQUEST_CONFIRM_RESERVATION(7, "RequestConfirmReservation", RequestConfirmReservation.class),
+    REPLY_CONFIRM_RESERVATION(8, "ReplyConfirmReservation", ReplyConfirmReservation.class),
+    REQUEST_CANCEL_RESERVATION(9, "RequestCancelReservation", RequestCancelReservation.class),
+    REPLY_CANCEL_RESERVATION(10, "ReplyCancelReservation", ReplyCancelReservation.class),
+    REPLY_EXECUTION_ERROR(11, "ReplyExecutionError", ReplyExecutionError.class),
+    REPLY_RESERVATION_EXPIRED(12, "ReplyReservationExpired", ReplyReservationExpired.class),
+    REQUEST_BUILDING_SEARCH(13, "RequestBuildingSearch", RequestBuildingSearch.class),
+    REPLY_BUILDING_SEARCH(14, "ReplyBuildingSearch", ReplyBuildingSearch.class),
+    REQUEST_BATCH_RESERVATION(15, "RequestBatchReservation", RequestBatchReservation.class),
+    REPLY_BATCH_RESERVATION(16, "ReplyBatchReservation", ReplyBatchReservation.class),
+    REPLY_BUILDING_PINGS(17, "ReplyBuildingPings", ReplyBuildingPings.class);
+
+    public static final String HEADER_CLASS = "class";
+
+    private static final MessageType[] BY_CODE;
+    private static final Map<String, MessageType> BY_HEADER = new HashMap<>();
+
+    static {
+        int maxCode = 0;
+        for (MessageType type : values()) maxCode = Math.max(maxCode, type.code);
+        BY_CODE = new MessageType[maxCode + 1];
+        for (MessageType type : values()) {
+            if (BY_CODE[type.code] != null) throw new ExceptionInInitializerError("Duplicate message type code " + type.code);
+            BY_CODE[type.code] = type;
+            BY_HEADER.put(type.headerName, type);
+        }
+    }
+
+    public final int code;
+    public final String typeCode;   // value of the AMQP type property
+    public final String headerName; // value of the legacy "class" header
+    public final Class<?> payloadType;
+
+    MessageType(int code, String headerName, Class<?> payloadType) {
+        this.code = code;
+        this.typeCode = Integer.toString(code);
+        this.headerName = headerName;
+        this.payloadType = payloadType;
+    }
+
+    public static int maxCode() {
+        return BY_CODE.length - 1;
+    }
+
+    // Returns null for messages that carry neither a type nor a class header.
+    public static MessageType of(AMQP.BasicProperties properties) {
+        String typeCode = properties.getType();
+        if (typeCode != null) return byCode(typeCode);
+
+        Map<String, Object> headers = properties.getHeaders();
+        Object headerName = headers == null ? null : headers.get(HEADER_CLASS);
+        if (headerName == null) return null;
+
+        MessageType type = BY_HEADER.get(headerName.toString());
+        if (type == null) throw new IllegalArgumentException("Unknown class header " + headerName);
+        return type;
+    }
+
+    // parsed by hand, this runs for every delivery
+    private static MessageType byCode(String typeCode) {
+        int code = 0;
+        for (int i = 0; i < typeCode.length(); i++) {
+            char c = typeCode.charAt(i);
+            if (c < '0' || c > '9' || code > maxCode()) throw new IllegalArgumentException("Unknown message type " + typeCode);
+            code = code * 10 + (c - '0');
+        }
+        if (typeCode.isEmpty() || code >= BY_CODE.length || BY_CODE[code] == null) {
+            throw new IllegalArgumentException("Unknown message type " + typeCode);
+        }
+        return BY_CODE[code];
+    }
+}
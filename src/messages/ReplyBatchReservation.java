@@ -0,0 +1,14 @@
+package src.messages;
+
+import java.util.List;
+
+// What became of every reservation of a RequestBatchReservation, in the order they were asked for.
+// RESERVED ones have a reservation number to confirm. With anyOf there is at most one RESERVED, the holds won
+// by the others are RELEASED. TIMED_OUT buildings didn't answer within the deadline, holds they make later are
+// released as well.
+public record ReplyBatchReservation(List<Outcome> outcomes, boolean anyOf){
+
+    public enum Status {RESERVED, FAILED, RELEASED, TIMED_OUT}
+
+    public record Outcome(String buildingId, int rooms, Status status, String reservationNumber, String message){ }
+}
@@ -1,3 +1,5 @@
 package src.messages;
 
-public record ReplyBuildingPing(String nameOfBuilding){ }
+// Sent by every building on a fixed schedule, and soon after rooms were given back. The version grows with every
+// ping of a building, across restarts too, so a ping that arrives late can't overwrite a newer one.
+public record ReplyBuildingPing(String nameOfBuilding, int availableRooms, int capacity, long version){ }
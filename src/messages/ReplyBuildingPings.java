@@ -0,0 +1,6 @@
+package src.messages;
+
+import java.util.List;
+
+// The pings of many buildings of one BuildingHost in one message, each is taken like a ReplyBuildingPing of its own.
+public record ReplyBuildingPings(List<ReplyBuildingPing> pings){ }
@@ -0,0 +1,10 @@
+package src.messages;
+
+import java.util.List;
+
+// One page of a building search. matches counts every building that qualified, version is the version of the
+// rental agent's index the page was taken from.
+public record ReplyBuildingSearch(List<Match> buildings, int page, int matches, long version){
+
+    public record Match(String buildingId, int freeRooms){ }
+}
@@ -0,0 +1,3 @@
+package src.messages;
+
+public record ReplyReservationExpired(String reservationNumber, String buildingId) { }
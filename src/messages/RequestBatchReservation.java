@@ -0,0 +1,8 @@
+package src.messages;
+
+import java.util.List;
+
+// Several reservations at once, sent to their buildings in parallel by the rental agent. With anyOf the customer
+// wants only one of them, the first building that has the rooms, holds won in the other buildings are released.
+// deadlineMs is how long the agent waits for the buildings, 0 takes the agent's default.
+public record RequestBatchReservation(List<RequestRoomReservation> reservations, boolean anyOf, long deadlineMs){ }
@@ -0,0 +1,4 @@
+package src.messages;
+
+// Buildings with at least minRooms free rooms, most free rooms first, pageSize of them starting at page * pageSize.
+public record RequestBuildingSearch(int minRooms, int pageSize, int page){ }
@@ -1,3 +1,10 @@
 package src.messages;
 
-public record RequestRoomReservation(int rooms, String buildingId) { }
+// checkIn and checkOut are ISO dates (2026-10-16), the rooms are booked for the nights in between.
+// Without them the rooms are booked for good, as reservations always were.
+public record RequestRoomReservation(int rooms, String buildingId, String checkIn, String checkOut) {
+
+    public RequestRoomReservation(int rooms, String buildingId) {
+        this(rooms, buildingId, null, null);
+    }
+}
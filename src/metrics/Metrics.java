@@ -0,0 +1,216 @@
+package src.metrics;
+
+import src.messages.MessageType;
+import src.logging.Log;
+import src.runtime.LatencyHistogram;
+import src.transport.MessageChannel;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import static src.utils.ANSIColors.*;
+
+// Counters, latencies and gauges of one building, rental agent or customer.
+// Per message type there is a received counter, a failed counter and a latency histogram, kept in arrays
+// indexed by the type's code, so recording is an array read and a LongAdder increment, nothing is looked
+// up by name and threads recording at the same time don't contend. Gauges are read only when someone
+// looks: over JMX as src.metrics:type=<role>,name=<name>, and in the periodic dump.
+public class Metrics implements MetricsMXBean {
+    private final String role;
+    private final String name;
+    private final LongAdder[] received = new LongAdder[MessageType.maxCode() + 1];
+    private final LongAdder[] failed = new LongAdder[MessageType.maxCode() + 1];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[MessageType.maxCode() + 1];
+    private final LongAdder returned = new LongAdder();
+    private final LongAdder errorReplies = new LongAdder();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    // what the latency stands for, e.g. receive -> ack for a building, request -> reply for a customer
+    private final String latencyOf;
+
+    public Metrics(String role, String name, String latencyOf) {
+        this.role = role;
+        this.name = name;
+        this.latencyOf = latencyOf;
+        for (int i = 0; i < received.length; i++) {
+            received[i] = new LongAdder();
+            failed[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    // RECORDING
+
+    public void received(MessageType type) {
+        if (type != null) received[type.code].increment();
+    }
+
+    // a message of the type is done, started is its System.nanoTime() when it came in or was sent
+    public void completed(MessageType type, long started) {
+        if (type != null) latencies[type.code].record(System.nanoTime() - started);
+    }
+
+    public void failed(MessageType type) {
+        if (type != null) failed[type.code].increment();
+    }
+
+    // a mandatory message that no queue took
+    public void returned() {
+        returned.increment();
+    }
+
+    public void errorReply() {
+        errorReplies.increment();
+    }
+
+    // counter for anything else, look it up once and keep it
+    public LongAdder counter(String counterName) {
+        return counters.computeIfAbsent(counterName, ignore -> new LongAdder());
+    }
+
+    public Metrics gauge(String gaugeName, LongSupplier value) {
+        gauges.put(gaugeName, value);
+        return this;
+    }
+
+    // messages waiting in a consumed queue, asked of the broker only when the gauge is read, -1 when it can't tell
+    public Metrics queueDepth(String queue, MessageChannel channel) {
+        return gauge("queue." + queue + ".depth", () -> {
+            try {
+                return channel.messageCount(queue);
+            } catch (IOException | RuntimeException e) {
+                return -1;
+            }
+        });
+    }
+
+    // PUBLISHING
+
+    // registers the MXBean, a second one under the same name (e.g. after a restart in the same JVM) replaces it
+    public Metrics registerMBean() {
+        try {
+            ObjectName objectName = new ObjectName("src.metrics:type=" + role + ",name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            Log.error(ANSI_RED, "Failed to register metrics over JMX: {}", e.getMessage());
+        }
+        return this;
+    }
+
+    // prints a snapshot every period, 0 turns the dump off
+    public void dumpEvery(ScheduledExecutorService scheduler, long periodMs) {
+        if (periodMs <= 0) return;
+        scheduler.scheduleAtFixedRate(() -> Log.info(ANSI_BLUE, "{}", dump()), periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public String dump() {
+        StringBuilder out = new StringBuilder("[metrics] ").append(name);
+        for (MessageType type : MessageType.values()) {
+            long count = received[type.code].sum();
+            LatencyHistogram latency = latencies[type.code];
+            if (count == 0 && latency.count() == 0) continue;
+            out.append("\n  ").append(type.headerName)
+                    .append(" received=").append(count)
+                    .append(" failed=").append(failed[type.code].sum());
+            if (latency.count() == 0) continue;
+            out.append(' ').append(latencyOf).append(" us p50=").append(micros(latency.percentile(0.5)))
+                    .append(" p99=").append(micros(latency.percentile(0.99)))
+                    .append(" p99.9=").append(micros(latency.percentile(0.999)))
+                    .append(" max=").append(micros(latency.max()));
+        }
+        out.append("\n  returned=").append(returned.sum()).append(" errorReplies=").append(errorReplies.sum());
+        getCounters().forEach((counterName, value) -> out.append(' ').append(counterName).append('=').append(value));
+        getGauges().forEach((gaugeName, value) -> out.append(' ').append(gaugeName).append('=').append(value));
+        return out.toString();
+    }
+
+    // MXBEAN
+
+    @Override
+    public Map<String, Long> getReceived() {
+        Map<String, Long> result = new TreeMap<>();
+        for (MessageType type : MessageType.values()) result.put(type.headerName, received[type.code].sum());
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getFailed() {
+        Map<String, Long> result = new TreeMap<>();
+        for (MessageType type : MessageType.values()) result.put(type.headerName, failed[type.code].sum());
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyMicros() {
+        Map<String, Double> result = new TreeMap<>();
+        for (MessageType type : MessageType.values()) {
+            LatencyHistogram latency = latencies[type.code];
+            if (latency.count() == 0) continue;
+            result.put(type.headerName + ".count", (double) latency.count());
+            result.put(type.headerName + ".mean", latency.mean() / 1000);
+            result.put(type.headerName + ".p50", micros(latency.percentile(0.5)));
+            result.put(type.headerName + ".p99", micros(latency.percentile(0.99)));
+            result.put(type.headerName + ".p999", micros(latency.percentile(0.999)));
+            result.put(type.headerName + ".max", micros(latency.max()));
+        }
+        return result;
+    }
+
+    @Override
+    public String getLatencyOf() {
+        return latencyOf;
+    }
+
+    @Override
+    public long getReturned() {
+        return returned.sum();
+    }
+
+    @Override
+    public long getErrorReplies() {
+        return errorReplies.sum();
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((counterName, counter) -> result.put(counterName, counter.sum()));
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> result = new TreeMap<>();
+        gauges.forEach((gaugeName, gauge) -> result.put(gaugeName, gauge.getAsLong()));
+        return result;
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < received.length; i++) {
+            received[i].reset();
+            failed[i].reset();
+            latencies[i].reset();
+        }
+        returned.reset();
+        errorReplies.reset();
+        counters.values().forEach(LongAdder::reset);
+    }
+
+    private static double micros(long nanos) {
+        return Math.round(nanos / 100.0) / 10.0;
+    }
+}
@@ -0,0 +1,27 @@
+package src.metrics;
+
+import java.util.Map;
+
+// What Metrics shows over JMX, e.g. in JConsole or VisualVM. Maps are keyed by message type, latencies
+// by "<type>.<statistic>".
+public interface MetricsMXBean {
+
+    Map<String, Long> getReceived();
+
+    Map<String, Long> getFailed();
+
+    Map<String, Double> getLatencyMicros();
+
+    // what the latencies measure
+    String getLatencyOf();
+
+    long getReturned();
+
+    long getErrorReplies();
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getGauges();
+
+    void reset();
+}
@@ -0,0 +1,27 @@
+package src.reservations;
+
+import static src.utils.Config.*;
+
+// Source of reservation numbers for one building. Implementations never hand out the same id twice,
+// so a building never has to retry on a collision.
+public interface ReservationIdGenerator {
+
+    long nextId();
+
+    // makes sure later ids are greater than one that was handed out before a restart
+    void skipPast(long id);
+
+    // picks the generator of Config.RESERVATION_IDS
+    static ReservationIdGenerator forBuilding(String buildingName) {
+        return switch (RESERVATION_IDS) {
+            case "snowflake" -> new SnowflakeIdGenerator(SnowflakeIdGenerator.nodeIdOf(buildingName));
+            case "sequential" -> {
+                if (!JOURNAL_DIR.isEmpty()) {
+                    throw new IllegalArgumentException("Sequential reservation ids would hand out numbers again after a restart, they can't be used with a journal");
+                }
+                yield new SequentialIdGenerator();
+            }
+            default -> throw new IllegalArgumentException("Unknown reservation id generator " + RESERVATION_IDS);
+        };
+    }
+}
@@ -0,0 +1,369 @@
+package src.reservations;
+
+import src.logging.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import static src.utils.ANSIColors.*;
+
+// Write-ahead journal of a building's reservations.
+// The ReservationStore appends every change while it holds the lock of that reservation, and an append is only a
+// copy into a memory-mapped file. One flusher thread forces the file to disk, and every caller waiting in sync()
+// is released by the same fsync, so consumers that change reservations at the same time share it (group commit).
+// A snapshot rolls the journal over to a new generation file, writes all reservations to the snapshot file and
+// deletes the older generations. Recovery loads the snapshot and replays the generations written after it.
+// Replaying is idempotent, a change made while the snapshot was written can be in both.
+//
+// File layout: a header (MAGIC, VERSION, chunk size), then records of [payload length, crc32c, payload].
+// A payload is the type and the reservation number. A hold adds rooms, check-in, check-out, the customer and its
+// origin: the message id and reply-to of the request and the customer's reply address, each string a length
+// (-1 for null) and UTF-8 bytes.
+// The file is mapped one chunk at a time, a record that doesn't fit leaves a NEXT_CHUNK marker behind.
+// A zero length is the end of the journal, a wrong crc is a torn write at the end of the journal.
+public class ReservationJournal implements Closeable {
+    private static final int MAGIC = 0x524A524E; // "RJRN"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER = 16;
+    private static final int RECORD_HEADER = 8;
+    private static final int NEXT_CHUNK = -1;
+    private static final byte HOLD = 1, CONFIRM = 2, CANCEL = 3;
+
+    private final Path directory;
+    private final ReservationStore store;
+    private final int chunkSize;
+    private final boolean waitForSync;
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+    private final Thread flusher;
+    private final Object snapshotLock = new Object();
+
+    // everything below is guarded by this
+    private long generation;
+    private FileChannel file;
+    private MappedByteBuffer chunk;
+    private long chunkIndex;
+    // chunks and files that were left behind and still have to be forced, and closed
+    private final List<MappedByteBuffer> unforced = new ArrayList<>();
+    private final List<FileChannel> retired = new ArrayList<>();
+    // bytes appended, and bytes known to be on disk, over all generations
+    private long written, durable;
+    private boolean flusherWaiting, closed;
+    private IOException failure;
+
+    private ReservationJournal(Path directory, ReservationStore store, int chunkSize, boolean waitForSync, long generation) throws IOException {
+        this.directory = directory;
+        this.store = store;
+        this.chunkSize = chunkSize;
+        this.waitForSync = waitForSync;
+        openGeneration(generation);
+        this.flusher = new Thread(this::flushLoop, "journal-flusher-" + directory.getFileName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Recovers the store from the directory and starts journaling its changes.
+    // With waitForSync sync() waits for the fsync, otherwise changes reach the disk shortly after.
+    public static ReservationJournal open(Path directory, ReservationStore store, int chunkSize, boolean waitForSync) throws IOException {
+        if (chunkSize < 1 << 17) throw new IllegalArgumentException("Journal chunks have to be at least 128 KB, got " + chunkSize);
+        Files.createDirectories(directory);
+
+        long generation = ReservationSnapshot.read(directory, store);
+        for (var entry : generationsFrom(directory, generation).entrySet()) {
+            replay(entry.getValue(), store);
+            generation = entry.getKey();
+        }
+        // only the state after the replay has to fit, the snapshot alone can hold rooms that were given back later
+        RoomCalendar calendar = store.calendar();
+        if (calendar.maxBooked(RoomCalendar.OPEN_START, RoomCalendar.OPEN_END) > calendar.capacity()) {
+            throw new IllegalStateException("Recovered reservations need more than the " + calendar.capacity() + " rooms of the building");
+        }
+
+        // a torn tail is never appended to, the journal goes on in a fresh generation and the replayed
+        // ones stay until the next snapshot covers them
+        ReservationJournal journal = new ReservationJournal(directory, store, chunkSize, waitForSync, generation + 1);
+        store.attach(journal);
+        return journal;
+    }
+
+    // CALLED BY THE STORE
+
+    void hold(long reservationNumber, String customerName, int numberOfRooms, int checkIn, int checkOut, ReservationStore.Origin origin) {
+        byte[][] strings = {bytesOf(customerName), bytesOf(origin.requestId()), bytesOf(origin.replyTo()), bytesOf(origin.replyAddress())};
+        append(HOLD, reservationNumber, numberOfRooms, checkIn, checkOut, strings);
+    }
+
+    void confirm(long reservationNumber) {
+        append(CONFIRM, reservationNumber, 0, 0, 0, null);
+    }
+
+    void cancel(long reservationNumber) {
+        append(CANCEL, reservationNumber, 0, 0, 0, null);
+    }
+
+    private static byte[] bytesOf(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Waits until everything appended so far is on disk. Returns right away when not waiting for syncs.
+    public void sync() throws IOException {
+        if (!waitForSync) return;
+        synchronized (this) {
+            long target = written;
+            while (durable < target) {
+                if (failure != null) throw failure;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal");
+                }
+            }
+        }
+    }
+
+    // Rolls over to a new generation, writes a snapshot and drops the generations it covers.
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long covered;
+            synchronized (this) {
+                if (closed) return;
+                unforced.add(chunk);
+                retired.add(file);
+                openGeneration(generation + 1);
+                covered = generation;
+            }
+            // the store is read segment by segment while consumers keep working, the new generation has their changes
+            ReservationSnapshot.write(directory, covered, store);
+            deleteGenerationsBefore(covered);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            file.close();
+        }
+    }
+
+    // APPENDING
+
+    // a hold's strings are the customer and its origin, null for the other records
+    private synchronized void append(byte type, long reservationNumber, int numberOfRooms, int checkIn, int checkOut, byte[][] strings) {
+        if (closed) throw new IllegalStateException("Journal is closed");
+        int payload = 1 + Long.BYTES;
+        if (type == HOLD) {
+            payload += 3 * Integer.BYTES;
+            for (byte[] string : strings) payload += Integer.BYTES + (string == null ? 0 : string.length);
+        }
+        if (scratch.capacity() < payload) scratch = ByteBuffer.allocate(payload);
+
+        scratch.clear();
+        scratch.put(type).putLong(reservationNumber);
+        if (type == HOLD) {
+            scratch.putInt(numberOfRooms).putInt(checkIn).putInt(checkOut);
+            for (byte[] string : strings) {
+                if (string == null) {
+                    scratch.putInt(-1);
+                } else {
+                    scratch.putInt(string.length).put(string);
+                }
+            }
+        }
+        scratch.flip();
+        crc.reset();
+        crc.update(scratch.array(), 0, payload);
+
+        // keep room for the NEXT_CHUNK marker
+        if (chunk.remaining() < RECORD_HEADER + payload + Integer.BYTES) nextChunk(RECORD_HEADER + payload);
+        // the length goes first, a crash half way leaves a record with a wrong crc
+        chunk.putInt(payload).putInt((int) crc.getValue()).put(scratch);
+
+        written += RECORD_HEADER + payload;
+        if (flusherWaiting) notifyAll();
+    }
+
+    private void nextChunk(int recordSize) {
+        if (recordSize + Integer.BYTES > chunkSize) throw new IllegalArgumentException("Journal record of " + recordSize + " bytes doesn't fit in a chunk");
+        try {
+            if (chunk.remaining() >= Integer.BYTES) chunk.putInt(NEXT_CHUNK);
+            unforced.add(chunk);
+            chunk = map(++chunkIndex);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot grow journal " + journalFile(directory, generation), e);
+        }
+    }
+
+    private void openGeneration(long generation) throws IOException {
+        this.generation = generation;
+        this.file = FileChannel.open(journalFile(directory, generation), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.chunkIndex = 0;
+        this.chunk = map(0);
+        chunk.putInt(MAGIC).putInt(VERSION).putInt(chunkSize).putInt(0);
+    }
+
+    private MappedByteBuffer map(long index) throws IOException {
+        return file.map(FileChannel.MapMode.READ_WRITE, index * chunkSize, chunkSize);
+    }
+
+    // FLUSHING
+
+    private void flushLoop() {
+        while (true) {
+            long target;
+            MappedByteBuffer current;
+            List<MappedByteBuffer> left;
+            List<FileChannel> toClose;
+            synchronized (this) {
+                while (written == durable && unforced.isEmpty() && !closed) {
+                    flusherWaiting = true;
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    flusherWaiting = false;
+                }
+                if (closed && written == durable && unforced.isEmpty()) return;
+
+                // everything appended until now goes to disk with this round, later appends wait for the next one
+                target = written;
+                current = chunk;
+                left = new ArrayList<>(unforced);
+                toClose = new ArrayList<>(retired);
+                unforced.clear();
+                retired.clear();
+            }
+
+            try {
+                for (MappedByteBuffer buffer : left) buffer.force();
+                current.force();
+                for (FileChannel channel : toClose) channel.close();
+                synchronized (this) {
+                    durable = Math.max(durable, target);
+                    notifyAll();
+                }
+            } catch (IOException | UncheckedIOException e) {
+                synchronized (this) {
+                    failure = e instanceof IOException io ? io : ((UncheckedIOException) e).getCause();
+                    notifyAll();
+                }
+                Log.error(ANSI_RED, "Journal {} can't be forced to disk: {}", directory, e.getMessage());
+                return;
+            }
+        }
+    }
+
+    // RECOVERY
+
+    private static void replay(Path path, ReservationStore store) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < FILE_HEADER) return;
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, FILE_HEADER);
+            if (header.getInt() != MAGIC) throw new IOException(path + " is not a reservation journal");
+            int version = header.getInt();
+            if (version != VERSION) throw new IOException(path + " is a journal of unknown version " + version);
+            int chunkSize = header.getInt();
+
+            CRC32C crc = new CRC32C();
+            for (long offset = 0; offset < channel.size(); offset += chunkSize) {
+                ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(chunkSize, channel.size() - offset));
+                if (offset == 0) in.position(FILE_HEADER);
+
+                while (in.remaining() >= RECORD_HEADER) {
+                    int payload = in.getInt();
+                    if (payload == NEXT_CHUNK) break;
+                    // the end of the journal, or a record that was torn by a crash
+                    if (payload <= 0 || payload > in.remaining() - Integer.BYTES) return;
+                    int checksum = in.getInt();
+                    ByteBuffer record = in.slice(in.position(), payload);
+                    crc.reset();
+                    crc.update(record.duplicate());
+                    if ((int) crc.getValue() != checksum) return;
+                    in.position(in.position() + payload);
+                    apply(record, store);
+                }
+            }
+        }
+    }
+
+    private static void apply(ByteBuffer record, ReservationStore store) {
+        byte type = record.get();
+        long reservationNumber = record.getLong();
+        switch (type) {
+            case HOLD -> {
+                int numberOfRooms = record.getInt();
+                int checkIn = record.getInt();
+                int checkOut = record.getInt();
+                String customer = readString(record);
+                ReservationStore.Origin origin = new ReservationStore.Origin(readString(record), readString(record), readString(record));
+                store.restore(new ReservationStore.Reservation(customer, reservationNumber, numberOfRooms, ReservationStore.State.HOLD, checkIn, checkOut, origin));
+            }
+            case CONFIRM -> {
+                ReservationStore.Reservation held = store.find(reservationNumber);
+                if (held != null) {
+                    store.restore(new ReservationStore.Reservation(held.customerName(), reservationNumber, held.numberOfRooms(), ReservationStore.State.CONFIRMED, held.checkIn(), held.checkOut()));
+                }
+            }
+            case CANCEL -> store.forget(reservationNumber);
+            default -> throw new IllegalStateException("Unknown journal record type " + type);
+        }
+    }
+
+    private static String readString(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // GENERATIONS
+
+    private static Path journalFile(Path directory, long generation) {
+        return directory.resolve(String.format("journal-%016d.log", generation));
+    }
+
+    private static TreeMap<Long, Path> generationsFrom(Path directory, long first) throws IOException {
+        TreeMap<Long, Path> generations = new TreeMap<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(path -> {
+                String name = path.getFileName().toString();
+                if (!name.startsWith("journal-") || !name.endsWith(".log")) return;
+                long generation = Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length()));
+                if (generation >= first) generations.put(generation, path);
+            });
+        }
+        return generations;
+    }
+
+    private void deleteGenerationsBefore(long generation) throws IOException {
+        for (Path path : generationsFrom(directory, 0).headMap(generation).values()) {
+            Files.deleteIfExists(path);
+        }
+    }
+}
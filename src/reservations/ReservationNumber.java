@@ -0,0 +1,31 @@
+package src.reservations;
+
+// Textual form of reservation ids as customers see them: "<building>-<id in base 36>".
+// The owning building is part of the number, so a rental agent can route a confirmation
+// or cancellation straight to the building's queue without any per reservation binding.
+public abstract class ReservationNumber {
+    public static final long INVALID = -1;
+    private static final char SEPARATOR = '-';
+
+    public static String format(String buildingId, long id) {
+        return buildingId + SEPARATOR + Long.toString(id, Character.MAX_RADIX);
+    }
+
+    // returns null when the number doesn't name a building
+    public static String buildingOf(String reservationNumber) {
+        int separator = reservationNumber == null ? -1 : reservationNumber.lastIndexOf(SEPARATOR);
+        return separator <= 0 ? null : reservationNumber.substring(0, separator);
+    }
+
+    // returns INVALID for anything that is not a reservation number
+    public static long parse(String reservationNumber) {
+        int separator = reservationNumber == null ? -1 : reservationNumber.lastIndexOf(SEPARATOR);
+        if (separator <= 0 || separator == reservationNumber.length() - 1) return INVALID;
+        try {
+            long id = Long.parseLong(reservationNumber, separator + 1, reservationNumber.length(), Character.MAX_RADIX);
+            return id < 0 ? INVALID : id;
+        } catch (NumberFormatException e) {
+            return INVALID;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package src.reservations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// Compact copy of every reservation of a building, and the journal generation that continues after it.
+// Written to a temporary file that is forced and then renamed over the previous snapshot, so a crash while
+// writing leaves the previous snapshot in place.
+// Layout: MAGIC, VERSION, generation, then per reservation a true marker, number, state, rooms, check-in,
+// check-out, customer and origin, and a false marker at the end. Each string of an origin is a presence marker
+// and its UTF.
+final class ReservationSnapshot {
+    private static final int MAGIC = 0x52534E50; // "RSNP"
+    private static final int VERSION = 1;
+    private static final String FILE = "snapshot.bin";
+
+    private ReservationSnapshot() {
+    }
+
+    static void write(Path directory, long generation, ReservationStore store) throws IOException {
+        Path temporary = directory.resolve(FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            try {
+                store.forEach(reservation -> {
+                    try {
+                        out.writeBoolean(true);
+                        out.writeLong(reservation.reservationNumber());
+                        out.writeByte(reservation.state().ordinal());
+                        out.writeInt(reservation.numberOfRooms());
+                        out.writeInt(reservation.checkIn());
+                        out.writeInt(reservation.checkOut());
+                        out.writeUTF(reservation.customerName());
+                        writeOptional(out, reservation.origin().requestId());
+                        writeOptional(out, reservation.origin().replyTo());
+                        writeOptional(out, reservation.origin().replyAddress());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.writeBoolean(false);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Loads the snapshot into the store and returns the generation that continues after it, 0 without a snapshot.
+    static long read(Path directory, ReservationStore store) throws IOException {
+        Path path = directory.resolve(FILE);
+        if (!Files.exists(path)) return 0;
+
+        ReservationStore.State[] states = ReservationStore.State.values();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 1 << 16))) {
+            if (in.readInt() != MAGIC) throw new IOException(path + " is not a reservation snapshot");
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException(path + " is a snapshot of unknown version " + version);
+            long generation = in.readLong();
+            while (in.readBoolean()) {
+                long reservationNumber = in.readLong();
+                ReservationStore.State state = states[in.readByte()];
+                int numberOfRooms = in.readInt();
+                int checkIn = in.readInt();
+                int checkOut = in.readInt();
+                String customerName = in.readUTF();
+                ReservationStore.Origin origin = new ReservationStore.Origin(readOptional(in), readOptional(in), readOptional(in));
+                store.restore(new ReservationStore.Reservation(customerName, reservationNumber, numberOfRooms, state, checkIn, checkOut, origin));
+            }
+            return generation;
+        } catch (EOFException e) {
+            throw new IOException(path + " is truncated", e);
+        }
+    }
+
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
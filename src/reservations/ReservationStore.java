@@ -0,0 +1,351 @@
+package src.reservations;
+
+import src.utils.LongIntHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Reservations of a single building, indexed by reservation number.
+// Entries live in parallel primitive arrays addressed by a slot number, the number -> slot
+// index is a primitive open addressing map, so a lookup is O(1) and no object is kept per reservation.
+// A reservation only moves forward: HOLD -> CONFIRMED -> CANCELLED, and cancelling frees its slot.
+// The store is split into segments by reservation number, each with its own lock, so several
+// consumers can work on different reservations at once. Rooms are taken from the RoomCalendar for the nights
+// of the stay when the hold is made and given back when it is cancelled or expires, inside the segment lock,
+// so the state and the calendar never disagree and a confirmation can't fail for lack of rooms.
+// With a ReservationJournal attached every change is journaled under the same lock, before it is applied.
+public class ReservationStore {
+
+    public enum State {HOLD, CONFIRMED, CANCELLED}
+
+    public enum Outcome {OK, NOT_FOUND, NOT_OWNER, ILLEGAL_STATE, NO_ROOMS}
+
+    // checkIn and checkOut are epoch days, RoomCalendar.OPEN_START and OPEN_END for an undated reservation
+    public record Reservation(String customerName, long reservationNumber, int numberOfRooms, State state, int checkIn, int checkOut, Origin origin) {
+        public Reservation(String customerName, long reservationNumber, int numberOfRooms, State state, int checkIn, int checkOut) {
+            this(customerName, reservationNumber, numberOfRooms, state, checkIn, checkOut, Origin.NONE);
+        }
+
+        // the address to tell the customer about an expired hold
+        public String expiryAddress() {
+            return origin.replyAddress() != null ? origin.replyAddress() : customerName;
+        }
+    }
+
+    // The request that made a reservation: its message id, the reply-to its reply went to, and where the customer
+    // hears about the hold running out, null for the queue of its name. Any of them can be null.
+    // The message id stays as long as the reservation, the addresses only while it is on hold.
+    public record Origin(String requestId, String replyTo, String replyAddress) {
+        public static final Origin NONE = new Origin(null, null, null);
+
+        Origin confirmed() {
+            return requestId == null ? NONE : new Origin(requestId, null, null);
+        }
+    }
+
+    // from is the state before the transition, null when nothing was found
+    public record Transition(Outcome outcome, State from, Reservation reservation) {
+        public boolean succeeded() {
+            return outcome == Outcome.OK;
+        }
+    }
+
+    private static final State[] STATES = State.values();
+
+    private final RoomCalendar calendar;
+    private final Segment[] segments;
+    private volatile ReservationJournal journal;
+
+    public ReservationStore(RoomCalendar calendar) {
+        this(calendar, 1024, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public ReservationStore(RoomCalendar calendar, int expectedSize, int concurrency) {
+        this.calendar = calendar;
+        int segmentCount = Integer.highestOneBit(Math.max(1, concurrency) - 1 | 1) << 1;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) segments[i] = new Segment(Math.max(16, expectedSize / segmentCount));
+    }
+
+    // from now on every change is written to the journal
+    void attach(ReservationJournal journal) {
+        this.journal = journal;
+    }
+
+    // Puts a new reservation on hold and takes its rooms for the nights [checkIn, checkOut).
+    // NO_ROOMS when some night doesn't have enough free rooms, ILLEGAL_STATE when the number is already taken.
+    public Outcome hold(long reservationNumber, String customerName, int numberOfRooms, int checkIn, int checkOut) {
+        return hold(reservationNumber, customerName, numberOfRooms, checkIn, checkOut, Origin.NONE);
+    }
+
+    // a hold that remembers the request it was made for, the origin is journaled with it
+    public Outcome hold(long reservationNumber, String customerName, int numberOfRooms, int checkIn, int checkOut, Origin origin) {
+        Segment segment = segmentOf(reservationNumber);
+        synchronized (segment) {
+            return segment.hold(reservationNumber, customerName, numberOfRooms, checkIn, checkOut, origin, calendar, journal);
+        }
+    }
+
+    public Reservation find(long reservationNumber) {
+        Segment segment = segmentOf(reservationNumber);
+        synchronized (segment) {
+            int slot = segment.slotsByNumber.get(reservationNumber);
+            return slot == LongIntHashMap.MISSING ? null : segment.view(slot);
+        }
+    }
+
+    // The way a customer changes a reservation. Only the customer that made the reservation may move it.
+    // Cancelling gives the rooms back to the calendar.
+    public Transition transition(long reservationNumber, String customerName, State target) {
+        Segment segment = segmentOf(reservationNumber);
+        synchronized (segment) {
+            return segment.transition(reservationNumber, customerName, target, calendar, journal);
+        }
+    }
+
+    // Cancels the reservation if it is still on hold and gives its rooms back, returns it or null when it
+    // was confirmed, cancelled or never existed.
+    public Reservation expire(long reservationNumber) {
+        Segment segment = segmentOf(reservationNumber);
+        synchronized (segment) {
+            return segment.expire(reservationNumber, calendar, journal);
+        }
+    }
+
+    // RECOVERY, the journal replays into the store before it is attached
+
+    // Puts the reservation in the given state, unless it is already there or further. A new reservation takes its
+    // rooms without looking at the capacity, the journal checks it once the replay is done.
+    public void restore(Reservation reservation) {
+        Segment segment = segmentOf(reservation.reservationNumber());
+        synchronized (segment) {
+            segment.restore(reservation, calendar);
+        }
+    }
+
+    // Drops the reservation and gives its rooms back, if it is there.
+    public void forget(long reservationNumber) {
+        Segment segment = segmentOf(reservationNumber);
+        synchronized (segment) {
+            segment.drop(reservationNumber, calendar);
+        }
+    }
+
+    // Hands every reservation to the consumer. Each segment is copied under its lock and handed out after,
+    // so a slow consumer doesn't hold up the building.
+    public void forEach(Consumer<Reservation> consumer) {
+        List<Reservation> copy = new ArrayList<>();
+        for (Segment segment : segments) {
+            copy.clear();
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.nextSlot; slot++) {
+                    if (segment.customers[slot] != null) copy.add(segment.view(slot));
+                }
+            }
+            copy.forEach(consumer);
+        }
+    }
+
+    public RoomCalendar calendar() {
+        return calendar;
+    }
+
+    // the counts below add up the segments one by one, under load they are estimates
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.slotsByNumber.size();
+            }
+        }
+        return size;
+    }
+
+    public int heldCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.heldCount;
+            }
+        }
+        return count;
+    }
+
+    public int confirmedCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.confirmedCount;
+            }
+        }
+        return count;
+    }
+
+    private Segment segmentOf(long reservationNumber) {
+        long hash = reservationNumber * 0x9E3779B97F4A7C15L;
+        return segments[(int) (hash >>> 32) & (segments.length - 1)];
+    }
+
+    // single threaded part of the store, always used under its own lock
+    private static final class Segment {
+        private final LongIntHashMap slotsByNumber;
+
+        private long[] numbers;
+        private int[] rooms;
+        private int[] checkIns, checkOuts;
+        private byte[] states;
+        private String[] customers;
+        // the origin of a reservation, all null for one without
+        private String[] requestIds, replyTos, replyAddresses;
+
+        private int[] freeSlots = new int[16];
+        private int freeSlotCount;
+        private int nextSlot;
+
+        private int heldCount, confirmedCount;
+
+        Segment(int capacity) {
+            slotsByNumber = new LongIntHashMap(capacity);
+            numbers = new long[capacity];
+            rooms = new int[capacity];
+            checkIns = new int[capacity];
+            checkOuts = new int[capacity];
+            states = new byte[capacity];
+            customers = new String[capacity];
+            requestIds = new String[capacity];
+            replyTos = new String[capacity];
+            replyAddresses = new String[capacity];
+        }
+
+        Outcome hold(long reservationNumber, String customerName, int numberOfRooms, int checkIn, int checkOut, Origin origin, RoomCalendar calendar, ReservationJournal journal) {
+            if (slotsByNumber.containsKey(reservationNumber)) return Outcome.ILLEGAL_STATE;
+            if (!calendar.tryReserve(checkIn, checkOut, numberOfRooms)) return Outcome.NO_ROOMS;
+            if (journal != null) {
+                try {
+                    journal.hold(reservationNumber, customerName, numberOfRooms, checkIn, checkOut, origin);
+                } catch (RuntimeException e) {
+                    calendar.release(checkIn, checkOut, numberOfRooms);
+                    throw e;
+                }
+            }
+            add(reservationNumber, customerName, numberOfRooms, checkIn, checkOut, State.HOLD, origin);
+            return Outcome.OK;
+        }
+
+        private void add(long reservationNumber, String customerName, int numberOfRooms, int checkIn, int checkOut, State state, Origin origin) {
+
+            int slot = allocateSlot();
+            numbers[slot] = reservationNumber;
+            rooms[slot] = numberOfRooms;
+            checkIns[slot] = checkIn;
+            checkOuts[slot] = checkOut;
+            states[slot] = (byte) state.ordinal();
+            customers[slot] = customerName;
+            if (state != State.HOLD) origin = origin.confirmed();
+            requestIds[slot] = origin.requestId();
+            replyTos[slot] = origin.replyTo();
+            replyAddresses[slot] = origin.replyAddress();
+            slotsByNumber.put(reservationNumber, slot);
+            if (state == State.HOLD) heldCount++;
+            else confirmedCount++;
+        }
+
+        Transition transition(long reservationNumber, String customerName, State target, RoomCalendar calendar, ReservationJournal journal) {
+            int slot = slotsByNumber.get(reservationNumber);
+            if (slot == LongIntHashMap.MISSING) return new Transition(Outcome.NOT_FOUND, null, null);
+
+            Reservation before = view(slot);
+            if (!before.customerName().equals(customerName)) return new Transition(Outcome.NOT_OWNER, before.state(), before);
+            if (target.ordinal() <= before.state().ordinal()) return new Transition(Outcome.ILLEGAL_STATE, before.state(), before);
+
+            if (journal != null) {
+                if (target == State.CANCELLED) journal.cancel(reservationNumber);
+                else journal.confirm(reservationNumber);
+            }
+
+            if (before.state() == State.HOLD) heldCount--;
+            else confirmedCount--;
+
+            if (target == State.CANCELLED) {
+                calendar.release(before.checkIn(), before.checkOut(), before.numberOfRooms());
+                release(slot);
+            } else {
+                states[slot] = (byte) target.ordinal();
+                replyTos[slot] = replyAddresses[slot] = null;
+                confirmedCount++;
+            }
+            return new Transition(Outcome.OK, before.state(), before);
+        }
+
+        Reservation expire(long reservationNumber, RoomCalendar calendar, ReservationJournal journal) {
+            int slot = slotsByNumber.get(reservationNumber);
+            if (slot == LongIntHashMap.MISSING || states[slot] != State.HOLD.ordinal()) return null;
+
+            if (journal != null) journal.cancel(reservationNumber);
+            return drop(reservationNumber, calendar);
+        }
+
+        Reservation drop(long reservationNumber, RoomCalendar calendar) {
+            int slot = slotsByNumber.get(reservationNumber);
+            if (slot == LongIntHashMap.MISSING) return null;
+
+            Reservation expired = view(slot);
+            if (expired.state() == State.HOLD) heldCount--;
+            else confirmedCount--;
+            calendar.release(expired.checkIn(), expired.checkOut(), expired.numberOfRooms());
+            release(slot);
+            return expired;
+        }
+
+        void restore(Reservation reservation, RoomCalendar calendar) {
+            int slot = slotsByNumber.get(reservation.reservationNumber());
+            if (slot == LongIntHashMap.MISSING) {
+                if (reservation.state() == State.CANCELLED) return;
+                calendar.book(reservation.checkIn(), reservation.checkOut(), reservation.numberOfRooms());
+                add(reservation.reservationNumber(), reservation.customerName(), reservation.numberOfRooms(), reservation.checkIn(), reservation.checkOut(), reservation.state(), reservation.origin());
+            } else if (reservation.state() == State.CONFIRMED && states[slot] == State.HOLD.ordinal()) {
+                states[slot] = (byte) State.CONFIRMED.ordinal();
+                replyTos[slot] = replyAddresses[slot] = null;
+                heldCount--;
+                confirmedCount++;
+            }
+        }
+
+        Reservation view(int slot) {
+            return new Reservation(customers[slot], numbers[slot], rooms[slot], STATES[states[slot]], checkIns[slot], checkOuts[slot], originOf(slot));
+        }
+
+        private Origin originOf(int slot) {
+            if (requestIds[slot] == null && replyTos[slot] == null && replyAddresses[slot] == null) return Origin.NONE;
+            return new Origin(requestIds[slot], replyTos[slot], replyAddresses[slot]);
+        }
+
+        private int allocateSlot() {
+            if (freeSlotCount > 0) return freeSlots[--freeSlotCount];
+            if (nextSlot == numbers.length) {
+                int capacity = numbers.length << 1;
+                numbers = Arrays.copyOf(numbers, capacity);
+                rooms = Arrays.copyOf(rooms, capacity);
+                checkIns = Arrays.copyOf(checkIns, capacity);
+                checkOuts = Arrays.copyOf(checkOuts, capacity);
+                states = Arrays.copyOf(states, capacity);
+                customers = Arrays.copyOf(customers, capacity);
+                requestIds = Arrays.copyOf(requestIds, capacity);
+                replyTos = Arrays.copyOf(replyTos, capacity);
+                replyAddresses = Arrays.copyOf(replyAddresses, capacity);
+            }
+            return nextSlot++;
+        }
+
+        private void release(int slot) {
+            slotsByNumber.remove(numbers[slot]);
+            customers[slot] = null;
+            requestIds[slot] = replyTos[slot] = replyAddresses[slot] = null;
+            if (freeSlotCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeSlotCount << 1);
+            freeSlots[freeSlotCount++] = slot;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package src.reservations;
+
+import java.time.LocalDate;
+
+// Rooms of a building booked per night, over a calendar of a fixed number of nights starting with the day the
+// building started. Days are epoch days, a stay [checkIn, checkOut) books every night from check-in up to the
+// night before check-out.
+// The nights are the leaves of a segment tree. Every node keeps the most and the fewest rooms booked on any
+// night below it, plus the rooms booked on all the nights below it at once. Booking a stay adds its rooms to
+// the O(log n) nodes that cover it, and the most rooms booked during a stay is read from the same nodes. So a
+// reservation is checked and made in O(log n) however long the stay or the calendar, night by night it is O(n).
+// A stay that reaches outside the calendar is cut down to it: an undated reservation, OPEN_START to OPEN_END,
+// books the whole calendar, and nights before the first day are gone already.
+// Rooms are taken all or nothing under the calendar's lock, so no night is ever overbooked, recovery aside.
+public class RoomCalendar {
+    // an undated stay, from the first night of the calendar to its last
+    public static final int OPEN_START = Integer.MIN_VALUE;
+    public static final int OPEN_END = Integer.MAX_VALUE;
+
+    private final int capacity;
+    private final int firstDay;
+    private final int days;
+    // leaves of the tree, a power of two not smaller than days
+    private final int size;
+    // most rooms booked on any night below the node, the node's own bookings included
+    private final int[] max;
+    // fewest rooms booked on any night below the node, only to catch releases of rooms that aren't booked
+    private final int[] min;
+    // rooms booked on every night below the node
+    private final int[] booked;
+
+    public RoomCalendar(int capacity, int days) {
+        this(capacity, today(), days);
+    }
+
+    public RoomCalendar(int capacity, int firstDay, int days) {
+        if (capacity < 0) throw new IllegalArgumentException("Capacity can't be negative, got " + capacity);
+        if (days <= 0) throw new IllegalArgumentException("A calendar needs at least one day, got " + days);
+        this.capacity = capacity;
+        this.firstDay = firstDay;
+        this.days = days;
+        this.size = Integer.highestOneBit(days - 1 | 1) << 1;
+        this.max = new int[2 * size];
+        this.min = new int[2 * size];
+        this.booked = new int[2 * size];
+    }
+
+    public static int today() {
+        return (int) LocalDate.now().toEpochDay();
+    }
+
+    // takes the rooms for every night of the stay if there are enough on all of them, all or nothing
+    public synchronized boolean tryReserve(int checkIn, int checkOut, int rooms) {
+        if (rooms <= 0) throw new IllegalArgumentException("Number of rooms has to be positive, got " + rooms);
+        int from = clamp(checkIn), to = clamp(checkOut);
+        // a stay that is over already doesn't need any room
+        if (from >= to) return true;
+        if (maxBooked(1, 0, size, from, to) + rooms > capacity) return false;
+        add(1, 0, size, from, to, rooms);
+        return true;
+    }
+
+    // Books the stay whatever the capacity. Only for recovery: a snapshot isn't a consistent cut, so rooms that
+    // were given back after it was started can be booked twice until the journal replay gives them back again.
+    synchronized void book(int checkIn, int checkOut, int rooms) {
+        if (rooms <= 0) throw new IllegalArgumentException("Number of rooms has to be positive, got " + rooms);
+        int from = clamp(checkIn), to = clamp(checkOut);
+        if (from < to) add(1, 0, size, from, to, rooms);
+    }
+
+    public synchronized void release(int checkIn, int checkOut, int rooms) {
+        if (rooms <= 0) throw new IllegalArgumentException("Number of rooms has to be positive, got " + rooms);
+        int from = clamp(checkIn), to = clamp(checkOut);
+        if (from >= to) return;
+        if (minBooked(1, 0, size, from, to) < rooms) {
+            throw new IllegalStateException("Releasing " + rooms + " rooms from day " + checkIn + " to " + checkOut + " would free more than is booked");
+        }
+        add(1, 0, size, from, to, -rooms);
+    }
+
+    // the most rooms booked on any night of [checkIn, checkOut)
+    public synchronized int maxBooked(int checkIn, int checkOut) {
+        int from = clamp(checkIn), to = clamp(checkOut);
+        return from >= to ? 0 : maxBooked(1, 0, size, from, to);
+    }
+
+    // rooms free on every night of [checkIn, checkOut)
+    public int available(int checkIn, int checkOut) {
+        return capacity - maxBooked(checkIn, checkOut);
+    }
+
+    // rooms free on every night from today to the end of the calendar, what an undated reservation can still get
+    public int available() {
+        return available(today(), OPEN_END);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int firstDay() {
+        return firstDay;
+    }
+
+    // the day after the last night of the calendar
+    public int endDay() {
+        return firstDay + days;
+    }
+
+    // night index in the calendar, cut down to [0, days]
+    private int clamp(int day) {
+        long night = (long) day - firstDay;
+        return (int) Math.max(0, Math.min(days, night));
+    }
+
+    // the node covers the nights [nodeFrom, nodeTo), the range [from, to) overlaps it
+    private void add(int node, int nodeFrom, int nodeTo, int from, int to, int rooms) {
+        if (from <= nodeFrom && nodeTo <= to) {
+            booked[node] += rooms;
+            max[node] += rooms;
+            min[node] += rooms;
+            return;
+        }
+        int middle = (nodeFrom + nodeTo) >>> 1;
+        if (from < middle) add(2 * node, nodeFrom, middle, from, to, rooms);
+        if (to > middle) add(2 * node + 1, middle, nodeTo, from, to, rooms);
+        max[node] = booked[node] + Math.max(max[2 * node], max[2 * node + 1]);
+        min[node] = booked[node] + Math.min(min[2 * node], min[2 * node + 1]);
+    }
+
+    private int maxBooked(int node, int nodeFrom, int nodeTo, int from, int to) {
+        if (from <= nodeFrom && nodeTo <= to) return max[node];
+        int middle = (nodeFrom + nodeTo) >>> 1;
+        int most = 0;
+        if (from < middle) most = maxBooked(2 * node, nodeFrom, middle, from, to);
+        if (to > middle) most = Math.max(most, maxBooked(2 * node + 1, middle, nodeTo, from, to));
+        return booked[node] + most;
+    }
+
+    // nights past the end of the calendar are leaves too, they are never booked and never asked for
+    private int minBooked(int node, int nodeFrom, int nodeTo, int from, int to) {
+        if (from <= nodeFrom && nodeTo <= to) return min[node];
+        int middle = (nodeFrom + nodeTo) >>> 1;
+        int least = Integer.MAX_VALUE;
+        if (from < middle) least = minBooked(2 * node, nodeFrom, middle, from, to);
+        if (to > middle) least = Math.min(least, minBooked(2 * node + 1, middle, nodeTo, from, to));
+        return booked[node] + least;
+    }
+}
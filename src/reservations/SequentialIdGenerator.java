@@ -0,0 +1,28 @@
+package src.reservations;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Plain counter. Cheapest option, but only unique within one process and one building,
+// meant for tests and benchmarks. It restarts after the highest number it is told to skip past, numbers that
+// were given out and dropped before a restart come back, so buildings don't use it with a journal.
+public class SequentialIdGenerator implements ReservationIdGenerator {
+    private final AtomicLong counter;
+
+    public SequentialIdGenerator() {
+        this(0);
+    }
+
+    public SequentialIdGenerator(long start) {
+        this.counter = new AtomicLong(start);
+    }
+
+    @Override
+    public long nextId() {
+        return counter.incrementAndGet();
+    }
+
+    @Override
+    public void skipPast(long id) {
+        counter.accumulateAndGet(id, Math::max);
+    }
+}
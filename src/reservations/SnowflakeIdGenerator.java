@@ -0,0 +1,56 @@
+package src.reservations;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static src.utils.Config.NODE_ID;
+
+// Snowflake style ids: 41 bits of milliseconds since EPOCH, 10 bits of node id, 12 bits of sequence.
+// The timestamp keeps ids unique across restarts, the node id keeps them unique across buildings.
+// Lock free: the last (millis, sequence) pair is one AtomicLong that is advanced with a CAS.
+// When more than 4096 ids are taken in one millisecond the sequence carries into the next millisecond
+// instead of waiting for the clock, so ids stay unique and monotonic, they just run slightly ahead.
+public class SnowflakeIdGenerator implements ReservationIdGenerator {
+    public static final long EPOCH = 1704067200000L; // 2024-01-01T00:00:00Z
+    public static final int NODE_BITS = 10;
+    public static final int SEQUENCE_BITS = 12;
+    public static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+
+    private final long nodeId;
+    // (millis since EPOCH << SEQUENCE_BITS) | sequence of the last handed out id
+    private final AtomicLong last = new AtomicLong();
+
+    public SnowflakeIdGenerator(long nodeId) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node id has to be between 0 and " + MAX_NODE_ID + ", got " + nodeId);
+        }
+        this.nodeId = nodeId;
+    }
+
+    // Config.NODE_ID wins, otherwise the node id is derived from the building name
+    public static long nodeIdOf(String buildingName) {
+        if (NODE_ID != null) return NODE_ID;
+        return (buildingName.hashCode() & 0x7fffffff) % (MAX_NODE_ID + 1);
+    }
+
+    @Override
+    public long nextId() {
+        long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+        long previous, next;
+        do {
+            previous = last.get();
+            next = Math.max(now, previous + 1);
+        } while (!last.compareAndSet(previous, next));
+
+        long millis = next >>> SEQUENCE_BITS;
+        long sequence = next & ((1L << SEQUENCE_BITS) - 1);
+        return (millis << (NODE_BITS + SEQUENCE_BITS)) | (nodeId << SEQUENCE_BITS) | sequence;
+    }
+
+    // only matters when the clock went back across a restart
+    @Override
+    public void skipPast(long id) {
+        long millis = id >>> (NODE_BITS + SEQUENCE_BITS);
+        long sequence = id & ((1L << SEQUENCE_BITS) - 1);
+        last.accumulateAndGet((millis << SEQUENCE_BITS) | sequence, Math::max);
+    }
+}
@@ -0,0 +1,119 @@
+package src.reservations;
+
+import src.logging.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import static src.utils.ANSIColors.*;
+
+// Hashed timing wheel for hold expiry.
+// A timeout is a reservation number dropped into the bucket of its deadline tick, scheduling is O(1) and
+// costs two array slots, so millions of pending holds don't mean millions of scheduled tasks.
+// Timeouts further away than one turn of the wheel stay in their bucket until their turn comes.
+// There is no cancel: a hold that was confirmed or cancelled in the meantime is skipped when its timeout fires.
+public class TimingWheel {
+    private final long tickMs;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final LongConsumer onExpiry;
+    private final long startMs = now();
+
+    // last tick that was processed, only written by the thread that advances the wheel
+    private volatile long processedTick;
+    private ScheduledFuture<?> ticker;
+
+    public TimingWheel(long tickMs, int wheelSize, LongConsumer onExpiry) {
+        if (tickMs <= 0) throw new IllegalArgumentException("Tick has to be positive, got " + tickMs);
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+        this.tickMs = tickMs;
+        this.buckets = new Bucket[size];
+        this.mask = size - 1;
+        this.onExpiry = onExpiry;
+        for (int i = 0; i < size; i++) buckets[i] = new Bucket();
+    }
+
+    public void start(ScheduledExecutorService scheduler) {
+        ticker = scheduler.scheduleAtFixedRate(this::advance, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (ticker != null) ticker.cancel(false);
+    }
+
+    // the id expires no earlier than delayMs from now, normally within one tick after that
+    public void schedule(long id, long delayMs) {
+        long deadlineTick = tickOf(now() + Math.max(0, delayMs)) + 1;
+        // a deadline the ticker already passed goes into the next bucket it will look at
+        deadlineTick = Math.max(deadlineTick, processedTick + 1);
+        buckets[(int) (deadlineTick & mask)].add(id, deadlineTick);
+    }
+
+    // Fires everything that is due. Called by the ticker, and catches up when a tick ran late.
+    public void advance() {
+        long currentTick = tickOf(now());
+        for (long tick = processedTick + 1; tick <= currentTick; tick++) {
+            long[] expired = buckets[(int) (tick & mask)].drain(tick);
+            processedTick = tick;
+            for (long id : expired) {
+                try {
+                    onExpiry.accept(id);
+                } catch (RuntimeException e) {
+                    // one failing expiry must not stop the wheel
+                    Log.error(ANSI_RED, "Failed to expire {}: {}", id, e.getMessage());
+                }
+            }
+        }
+    }
+
+    private long tickOf(long timeMs) {
+        return (timeMs - startMs) / tickMs;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    // ids and their deadline ticks in parallel arrays, allocated with the first id, most buckets of a quiet wheel stay empty
+    private static final class Bucket {
+        private long[] ids = EMPTY;
+        private long[] deadlines = EMPTY;
+        private int size;
+
+        synchronized void add(long id, long deadlineTick) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(16, size << 1));
+                deadlines = Arrays.copyOf(deadlines, Math.max(16, size << 1));
+            }
+            ids[size] = id;
+            deadlines[size] = deadlineTick;
+            size++;
+        }
+
+        // removes and returns the ids that are due, keeps the ones of later turns
+        synchronized long[] drain(long tick) {
+            int due = 0;
+            for (int i = 0; i < size; i++) if (deadlines[i] <= tick) due++;
+            if (due == 0) return EMPTY;
+
+            long[] expired = new long[due];
+            int kept = 0, taken = 0;
+            for (int i = 0; i < size; i++) {
+                if (deadlines[i] <= tick) {
+                    expired[taken++] = ids[i];
+                } else {
+                    ids[kept] = ids[i];
+                    deadlines[kept] = deadlines[i];
+                    kept++;
+                }
+            }
+            size = kept;
+            return expired;
+        }
+    }
+
+    private static final long[] EMPTY = new long[0];
+}
@@ -0,0 +1,119 @@
+package src.runtime;
+
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Delivery;
+import src.logging.Log;
+import src.transport.MessageChannel;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static src.utils.Common.*;
+import static src.utils.ANSIColors.*;
+
+// Coalesces acknowledgements of one channel.
+// Delivery tags are a single sequence per channel, shared by all its consumers. A tag is settled once its
+// message was handled (ack) or given up on (fail). Settled tags are acked with a single multiple=true ack,
+// but only up to the highest tag below which everything is settled, so a message still being processed,
+// or one that failed, is never acked by accident. Failed messages are nacked one by one straight away:
+// requeued the first time, dead-lettered when they fail again after redelivery. A multiple ack always names a
+// tag that was acked: the broker forgets a nacked tag, and acking one it doesn't know closes the channel.
+public class AckManager implements AutoCloseable {
+    private final MessageChannel channel;
+    private final int batchSize;
+    private ScheduledFuture<?> flushTask;
+
+    // all tags <= settledUpTo are settled, ackedUpTo <= settledUpTo has been sent to the broker
+    private long settledUpTo;
+    private long ackedUpTo;
+    // settled tags above settledUpTo, bit i stands for tag (base + i)
+    private BitSet settledAbove = new BitSet();
+    // nacked tags above ackedUpTo, the broker forgot them already, so a multiple ack must never name one
+    private BitSet nacked = new BitSet();
+    private long base = 1;
+
+    public AckManager(MessageChannel channel, int batchSize) {
+        this.channel = channel;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    // from now on acks are sent at least every windowMs
+    public AckManager start(ScheduledExecutorService scheduler, long windowMs) {
+        flushTask = scheduler.scheduleWithFixedDelay(this::flush, windowMs, windowMs, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    // Declares the dead letter exchange and queue, returns the arguments a queue needs to use them.
+    public static Map<String, Object> deadLetterArguments(MessageChannel channel) throws IOException {
+        channel.exchangeDeclare(EXCHANGE_DEAD_LETTERS, BuiltinExchangeType.FANOUT);
+        channel.queueDeclare(QUEUE_DEAD_LETTERS, false, false, false, null);
+        channel.queueBind(QUEUE_DEAD_LETTERS, EXCHANGE_DEAD_LETTERS, "");
+        return Map.of("x-dead-letter-exchange", EXCHANGE_DEAD_LETTERS);
+    }
+
+    public void ack(Delivery delivery) {
+        synchronized (this) {
+            settle(delivery.getEnvelope().getDeliveryTag());
+            if (settledUpTo - ackedUpTo < batchSize) return;
+        }
+        flush();
+    }
+
+    public void fail(Delivery delivery) {
+        long tag = delivery.getEnvelope().getDeliveryTag();
+        // one more try for a fresh message, a redelivered one goes to the dead letter queue
+        boolean requeue = !delivery.getEnvelope().isRedeliver();
+        synchronized (this) {
+            // the acks waiting below go out first, when nothing below is left the watermark steps past the nack
+            flush();
+            try {
+                channel.basicNack(tag, false, requeue);
+            } catch (IOException e) {
+                Log.error(ANSI_RED, "Failed to reject message: {}", e.getMessage());
+            }
+            if (tag > ackedUpTo) nacked.set((int) (tag - base));
+            settle(tag);
+            flush();
+        }
+    }
+
+    // Acks everything settled with one multiple ack, up to the highest settled tag that was acked.
+    // Nacked tags in between are skipped by the broker, a nacked tag on top is stepped over without an ack.
+    public synchronized void flush() {
+        if (settledUpTo == ackedUpTo) return;
+        long upTo = settledUpTo;
+        while (upTo > ackedUpTo && nacked.get((int) (upTo - base))) upTo--;
+        try {
+            if (upTo > ackedUpTo) channel.basicAck(upTo, true);
+            ackedUpTo = settledUpTo;
+        } catch (IOException e) {
+            Log.error(ANSI_RED, "Failed to acknowledge message: {}", e.getMessage());
+            return;
+        }
+        // drop the bits below the watermark now and then, so the sets don't grow forever
+        if (ackedUpTo - base > 4096) {
+            int from = (int) (ackedUpTo + 1 - base);
+            settledAbove = settledAbove.get(from, Math.max(settledAbove.length(), from));
+            nacked = nacked.get(from, Math.max(nacked.length(), from));
+            base = ackedUpTo + 1;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (flushTask != null) flushTask.cancel(false);
+        flush();
+    }
+
+    private void settle(long tag) {
+        if (tag <= settledUpTo) return;
+        settledAbove.set((int) (tag - base));
+        // move the watermark over every contiguous settled tag
+        int next = settledAbove.nextClearBit((int) (settledUpTo + 1 - base));
+        settledUpTo = base + next - 1;
+    }
+}
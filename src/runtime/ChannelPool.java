@@ -0,0 +1,32 @@
+package src.runtime;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.ReturnCallback;
+import src.transport.MessageChannel;
+import src.transport.Transport;
+
+import java.io.IOException;
+
+// A few channels to publish on, so parallel handlers don't all queue up on one channel.
+// The channel is picked by routing key: everything sent to the same queue goes through the same
+// channel and keeps its order.
+public class ChannelPool {
+    private final MessageChannel[] channels;
+
+    public ChannelPool(Transport transport, int size, ReturnCallback returnCallback) throws IOException {
+        channels = new MessageChannel[Math.max(1, size)];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = transport.createChannel();
+            channels[i].addReturnListener(returnCallback);
+        }
+    }
+
+    public void publish(String exchange, String routingKey, boolean mandatory, AMQP.BasicProperties props, byte[] body) throws IOException {
+        int hash = routingKey.hashCode();
+        channels[Math.floorMod(hash ^ (hash >>> 16), channels.length)].basicPublish(exchange, routingKey, mandatory, props, body);
+    }
+
+    public void publish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) throws IOException {
+        publish(exchange, routingKey, false, props, body);
+    }
+}
@@ -0,0 +1,100 @@
+package src.runtime;
+
+import com.rabbitmq.client.AMQP;
+import src.utils.LongIntHashMap;
+
+// Replies to recently handled messages, keyed by message id, so a redelivered message is answered again
+// instead of being handled twice. Bounded in size and age: entries live in a ring in arrival order, a new
+// entry overwrites the oldest one once the ring is full, and entries older than the ttl are dropped.
+// A message id is kept as a 64 bit hash in a primitive map, there is no String or boxed key per entry.
+// Two ids sharing a hash within one window is unlikely enough to ignore.
+public class DedupCache {
+
+    // what was published in reply to a message, HANDLED when there was nothing to send
+    public record Reply(String exchange, String routingKey, boolean mandatory, AMQP.BasicProperties props, byte[] body) {
+        public boolean isEmpty() {
+            return body == null;
+        }
+    }
+
+    public static final Reply HANDLED = new Reply(null, null, false, null, null);
+
+    private final long ttlMs;
+    private final LongIntHashMap slotsByKey;
+    private final long[] keys;
+    private final long[] handledAt;
+    private final Reply[] replies;
+    // oldest entry and number of entries in the ring
+    private int tail, count;
+
+    public DedupCache(int capacity, long ttlMs) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity has to be positive, got " + capacity);
+        this.ttlMs = ttlMs;
+        this.slotsByKey = new LongIntHashMap(capacity);
+        this.keys = new long[capacity];
+        this.handledAt = new long[capacity];
+        this.replies = new Reply[capacity];
+    }
+
+    // the reply to a message with this id, null when it wasn't handled within the ttl
+    public synchronized Reply get(String messageId) {
+        evictExpired(now());
+        int slot = slotsByKey.get(keyOf(messageId));
+        return slot == LongIntHashMap.MISSING ? null : replies[slot];
+    }
+
+    // Remembers the reply. A message that is already known keeps its first reply, that's the one the sender got.
+    public synchronized void put(String messageId, Reply reply) {
+        long now = now();
+        evictExpired(now);
+
+        long key = keyOf(messageId);
+        int existing = slotsByKey.get(key);
+        if (existing != LongIntHashMap.MISSING) {
+            if (replies[existing].isEmpty()) replies[existing] = reply;
+            return;
+        }
+
+        if (count == keys.length) evictOldest();
+        int slot = (tail + count) % keys.length;
+        keys[slot] = key;
+        handledAt[slot] = now;
+        replies[slot] = reply;
+        slotsByKey.put(key, slot);
+        count++;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    private void evictExpired(long now) {
+        while (count > 0 && now - handledAt[tail] > ttlMs) evictOldest();
+    }
+
+    private void evictOldest() {
+        slotsByKey.remove(keys[tail]);
+        replies[tail] = null;
+        tail = (tail + 1) % keys.length;
+        count--;
+    }
+
+    private static long keyOf(String messageId) {
+        // A multiplier of 31 like String.hashCode makes ids that differ in their last two characters
+        // collide ("...-1n" and "...-30"), and counters in ids do exactly that. With a 64 bit odd multiplier
+        // two characters can only cancel out if they are the same.
+        long hash = 1125899906842597L;
+        for (int i = 0; i < messageId.length(); i++) hash = (hash + messageId.charAt(i)) * 0x9E3779B97F4A7C15L;
+        // murmur3 finalizer, spreads the polynomial hash over all 64 bits
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+}
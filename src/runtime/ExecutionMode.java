@@ -0,0 +1,70 @@
+package src.runtime;
+
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import src.logging.Log;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static src.utils.ANSIColors.*;
+
+// Which kind of threads a process runs its work on.
+// PLATFORM keeps the usual pools of OS threads. VIRTUAL runs consumer callbacks, handlers, heartbeats and
+// the publishes they make on virtual threads, so thousands of messages in flight don't need thousands of
+// OS threads. Both modes build everything the same way, so they can be compared with the thread report.
+public enum ExecutionMode {
+    PLATFORM, VIRTUAL;
+
+    public static ExecutionMode byName(String name) {
+        return switch (name) {
+            case "platform" -> PLATFORM;
+            case "virtual" -> VIRTUAL;
+            default -> throw new IllegalArgumentException("Unknown execution mode " + name);
+        };
+    }
+
+    // executor for consumer callbacks and handlers, platformThreads is the pool size in PLATFORM mode
+    public ExecutorService newExecutor(String name, int platformThreads) {
+        return switch (this) {
+            case PLATFORM -> Executors.newFixedThreadPool(Math.max(1, platformThreads), threadFactory(name));
+            case VIRTUAL -> Executors.newThreadPerTaskExecutor(threadFactory(name));
+        };
+    }
+
+    // for heartbeats, ack windows and other timers, replaces java.util.Timer
+    public ScheduledExecutorService newScheduler(String name) {
+        return Executors.newScheduledThreadPool(1, threadFactory(name));
+    }
+
+    public ThreadFactory threadFactory(String name) {
+        return switch (this) {
+            case PLATFORM -> Thread.ofPlatform().name(name + "-", 0).factory();
+            case VIRTUAL -> Thread.ofVirtual().name(name + "-", 0).factory();
+        };
+    }
+
+    // The connection's consumer callbacks run on the shared executor, its I/O and heartbeats on threads of this mode.
+    public Connection newConnection(ConnectionFactory factory, String name) throws IOException, TimeoutException {
+        factory.setThreadFactory(threadFactory(name + "-io"));
+        factory.setSharedExecutor(newExecutor(name + "-consumer", Runtime.getRuntime().availableProcessors() * 2));
+        factory.setHeartbeatExecutor(newScheduler(name + "-heartbeat"));
+        return factory.newConnection(name);
+    }
+
+    // Prints the OS thread count every periodMs, to compare the modes under the same load.
+    // Virtual threads don't show up here, only the carriers and platform threads do.
+    public void reportThreads(ScheduledExecutorService scheduler, long periodMs) {
+        if (periodMs <= 0) return;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        scheduler.scheduleAtFixedRate(() -> Log.log(Log.Level.INFO, ANSI_YELLOW, "[{} threads] live {}, peak {}, started {}",
+                name().toLowerCase(), threads.getThreadCount(), threads.getPeakThreadCount(), threads.getTotalStartedThreadCount()), periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+}
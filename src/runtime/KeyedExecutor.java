@@ -0,0 +1,70 @@
+package src.runtime;
+
+import src.logging.Log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static src.utils.ANSIColors.*;
+
+// Runs tasks in parallel on a backing executor, but tasks with the same key one after another, in order.
+// Keys are spread over a fixed number of lanes, a lane is a queue that is drained by at most one
+// worker at a time, so nothing blocks while a lane is busy, its tasks just wait in the queue.
+public class KeyedExecutor implements AutoCloseable {
+    // tasks a lane runs before it gives its worker back, keeps busy lanes from starving the others
+    private static final int LANE_BATCH = 64;
+
+    private final Lane[] lanes;
+    private final ExecutorService backing;
+
+    public KeyedExecutor(int lanes, ExecutorService backing) {
+        this.lanes = new Lane[Math.max(1, lanes)];
+        for (int i = 0; i < this.lanes.length; i++) this.lanes[i] = new Lane();
+        this.backing = backing;
+    }
+
+    public void execute(Object key, Runnable task) {
+        int hash = key.hashCode();
+        lanes[Math.floorMod(hash ^ (hash >>> 16), lanes.length)].submit(task);
+    }
+
+    // waits for the tasks that were submitted, an interrupt stops the wait and stays set for the caller
+    @Override
+    public void close() {
+        backing.shutdown();
+        try {
+            backing.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Lane implements Runnable {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            if (scheduled.compareAndSet(false, true)) backing.execute(this);
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < LANE_BATCH; i++) {
+                Runnable task = tasks.poll();
+                if (task == null) break;
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.error(ANSI_RED, "Task failed: {}", e);
+                }
+            }
+            scheduled.set(false);
+            // a task may have been added after the last poll, but before scheduled was cleared
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) backing.execute(this);
+        }
+    }
+}
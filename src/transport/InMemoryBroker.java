@@ -0,0 +1,245 @@
+package src.transport;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import src.logging.Log;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static src.utils.ANSIColors.*;
+
+// Broker inside the JVM, for tests, benchmarks and running everything in one process.
+// Covers the AMQP this system uses: direct and fanout exchanges and the default exchange, queues and bindings,
+// consumers with prefetch, acks, nacks with requeue or dead lettering, mandatory returns and direct reply-to.
+// Messages are passed by reference, nothing is copied or sent over a socket. Queues are lock free: a message
+// is offered to a ConcurrentLinkedQueue, and whichever thread finds the queue idle hands the waiting messages
+// to consumers that have prefetch left. The consumer's channel then runs the callback, see InMemoryTransport.
+public class InMemoryBroker {
+    public static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+
+    private static final InMemoryBroker SHARED = new InMemoryBroker();
+
+    private final Map<String, Exchange> exchanges = new ConcurrentHashMap<>();
+    private final Map<String, MemoryQueue> queues = new ConcurrentHashMap<>();
+
+    // the broker used by -Drentals.transport=memory
+    public static InMemoryBroker shared() {
+        return SHARED;
+    }
+
+    record Message(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body, boolean redelivered) {
+        Message redelivery() {
+            return redelivered ? this : new Message(exchange, routingKey, props, body, true);
+        }
+    }
+
+    // TOPOLOGY
+
+    void exchangeDeclare(String name, BuiltinExchangeType type) throws IOException {
+        if (type != BuiltinExchangeType.DIRECT && type != BuiltinExchangeType.FANOUT) {
+            throw new IOException("Exchange type " + type + " is not supported in memory");
+        }
+        Exchange exchange = exchanges.computeIfAbsent(name, ignore -> new Exchange(type));
+        if (exchange.type != type) {
+            throw new IOException("PRECONDITION_FAILED - inequivalent arg 'type' for exchange '" + name + "': received '" + type + "' but current is '" + exchange.type + "'");
+        }
+    }
+
+    MemoryQueue queueDeclare(String name, boolean autoDelete, Map<String, Object> arguments) {
+        Object deadLetterExchange = arguments == null ? null : arguments.get("x-dead-letter-exchange");
+        return queues.computeIfAbsent(name, ignore -> new MemoryQueue(name, autoDelete, deadLetterExchange == null ? null : deadLetterExchange.toString()));
+    }
+
+    void queueBind(String queueName, String exchangeName, String routingKey) throws IOException {
+        MemoryQueue queue = queue(queueName);
+        Exchange exchange = exchanges.get(exchangeName);
+        if (exchange == null) throw new IOException("NOT_FOUND - no exchange '" + exchangeName + "'");
+        exchange.bindings.computeIfAbsent(exchange.type == BuiltinExchangeType.FANOUT ? "" : routingKey, ignore -> ConcurrentHashMap.newKeySet()).add(queue);
+    }
+
+    // like RabbitMQ, unbinding what isn't bound is fine
+    void queueUnbind(String queueName, String exchangeName, String routingKey) {
+        MemoryQueue queue = queues.get(queueName);
+        Exchange exchange = exchanges.get(exchangeName);
+        if (queue == null || exchange == null) return;
+        Set<MemoryQueue> bound = exchange.bindings.get(exchange.type == BuiltinExchangeType.FANOUT ? "" : routingKey);
+        if (bound != null) bound.remove(queue);
+    }
+
+    void queueDelete(String name) {
+        MemoryQueue queue = queues.remove(name);
+        if (queue == null) return;
+        queue.deleted = true;
+        queue.consumers.clear();
+        for (Exchange exchange : exchanges.values()) {
+            for (Set<MemoryQueue> bound : exchange.bindings.values()) bound.remove(queue);
+        }
+    }
+
+    MemoryQueue queue(String name) throws IOException {
+        MemoryQueue queue = queues.get(name);
+        if (queue == null) throw new IOException("NOT_FOUND - no queue '" + name + "'");
+        return queue;
+    }
+
+    // ROUTING
+
+    // Returns false when no queue took the message.
+    boolean publish(String exchangeName, String routingKey, AMQP.BasicProperties props, byte[] body) throws IOException {
+        Message message = new Message(exchangeName, routingKey, props, body, false);
+        if (exchangeName.isEmpty()) {
+            // the default exchange routes to the queue named by the routing key
+            MemoryQueue queue = queues.get(routingKey);
+            if (queue == null) return false;
+            queue.enqueue(message);
+            return true;
+        }
+
+        Exchange exchange = exchanges.get(exchangeName);
+        if (exchange == null) throw new IOException("NOT_FOUND - no exchange '" + exchangeName + "'");
+        Set<MemoryQueue> bound = exchange.bindings.get(exchange.type == BuiltinExchangeType.FANOUT ? "" : routingKey);
+        if (bound == null) return false;
+
+        boolean routed = false;
+        for (MemoryQueue queue : bound) {
+            queue.enqueue(message);
+            routed = true;
+        }
+        return routed;
+    }
+
+    void deadLetter(MemoryQueue queue, Message message) {
+        if (queue.deadLetterExchange == null) return;
+        try {
+            publish(queue.deadLetterExchange, message.routingKey(), message.props(), message.body());
+        } catch (IOException e) {
+            Log.error(ANSI_RED, "Failed to dead letter a message of {}: {}", queue.name, e.getMessage());
+        }
+    }
+
+    private static final class Exchange {
+        private final BuiltinExchangeType type;
+        // by routing key, a fanout exchange keeps all its queues under ""
+        private final Map<String, Set<MemoryQueue>> bindings = new ConcurrentHashMap<>();
+
+        Exchange(BuiltinExchangeType type) {
+            this.type = type;
+        }
+    }
+
+    // A consumer of a queue, owned by a channel.
+    interface Subscriber {
+        // takes one unit of prefetch, false when the consumer has none left
+        boolean tryAcquire();
+
+        void release();
+
+        boolean hasCredit();
+
+        void deliver(MemoryQueue queue, Message message);
+    }
+
+    static final class MemoryQueue {
+        final String name;
+        final boolean autoDelete;
+        final String deadLetterExchange;
+        final CopyOnWriteArrayList<Subscriber> consumers = new CopyOnWriteArrayList<>();
+        private final ConcurrentLinkedQueue<Message> messages = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        // round robin over the consumers, only moved by the draining thread
+        private int next;
+        volatile boolean deleted;
+
+        MemoryQueue(String name, boolean autoDelete, String deadLetterExchange) {
+            this.name = name;
+            this.autoDelete = autoDelete;
+            this.deadLetterExchange = deadLetterExchange;
+        }
+
+        void enqueue(Message message) {
+            if (deleted) return;
+            messages.offer(message);
+            drain();
+        }
+
+        // Hands waiting messages to consumers with prefetch left. Called after every enqueue, ack and new consumer.
+        void drain() {
+            while (draining.compareAndSet(false, true)) {
+                try {
+                    while (!messages.isEmpty()) {
+                        Subscriber consumer = nextWithCredit();
+                        if (consumer == null) break;
+                        Message message = messages.poll();
+                        if (message == null) {
+                            consumer.release();
+                            break;
+                        }
+                        consumer.deliver(this, message);
+                    }
+                } finally {
+                    draining.set(false);
+                }
+                // a message or an ack may have come in after the loop gave up, but before the flag was cleared
+                if (messages.isEmpty() || !anyCredit()) return;
+            }
+        }
+
+        int size() {
+            return messages.size();
+        }
+
+        private Subscriber nextWithCredit() {
+            int count = consumers.size();
+            for (int i = 0; i < count; i++) {
+                Subscriber consumer;
+                try {
+                    consumer = consumers.get(Math.floorMod(next++, count));
+                } catch (IndexOutOfBoundsException e) {
+                    return null; // a consumer went away in the meantime, the next drain picks up
+                }
+                if (consumer.tryAcquire()) return consumer;
+            }
+            return null;
+        }
+
+        private boolean anyCredit() {
+            for (Subscriber consumer : consumers) if (consumer.hasCredit()) return true;
+            return false;
+        }
+    }
+
+    // prefetch of one consumer, deliveries it holds that are not acked yet, 0 is unlimited
+    static final class Credit {
+        private final int prefetch;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        Credit(int prefetch) {
+            this.prefetch = prefetch;
+        }
+
+        boolean tryAcquire() {
+            if (prefetch <= 0) return true;
+            int current;
+            do {
+                current = inFlight.get();
+                if (current >= prefetch) return false;
+            } while (!inFlight.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        void release() {
+            if (prefetch > 0) inFlight.decrementAndGet();
+        }
+
+        boolean hasCredit() {
+            return prefetch <= 0 || inFlight.get() < prefetch;
+        }
+    }
+}
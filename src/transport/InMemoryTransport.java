@@ -0,0 +1,253 @@
+package src.transport;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.Delivery;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.Return;
+import com.rabbitmq.client.ReturnCallback;
+import src.logging.Log;
+import src.runtime.ExecutionMode;
+import src.runtime.KeyedExecutor;
+import src.transport.InMemoryBroker.Credit;
+import src.transport.InMemoryBroker.MemoryQueue;
+import src.transport.InMemoryBroker.Message;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static src.utils.ANSIColors.*;
+
+// Connection to an InMemoryBroker. Each channel runs the callbacks of its consumers one at a time on the
+// transport's executor, in delivery order, and keeps its unacknowledged deliveries by tag in a skip list,
+// so acks, multiple acks and nacks work as they do against RabbitMQ.
+public class InMemoryTransport implements Transport {
+    private static final AtomicInteger CHANNEL_IDS = new AtomicInteger();
+
+    private final InMemoryBroker broker;
+    private final ExecutorService executor;
+    private final List<InMemoryChannel> channels = new CopyOnWriteArrayList<>();
+
+    public InMemoryTransport(InMemoryBroker broker, String name, ExecutionMode execution) {
+        this.broker = broker;
+        this.executor = execution.newExecutor(name + "-dispatch", Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public MessageChannel createChannel() {
+        InMemoryChannel channel = new InMemoryChannel();
+        channels.add(channel);
+        return channel;
+    }
+
+    @Override
+    public void close() {
+        for (InMemoryChannel channel : channels) channel.close();
+        executor.shutdown();
+    }
+
+    private final class InMemoryChannel implements MessageChannel {
+        private final int id = CHANNEL_IDS.incrementAndGet();
+        // one lane, callbacks of this channel never run at the same time
+        private final KeyedExecutor callbacks = new KeyedExecutor(1, executor);
+        private final AtomicLong deliveryTags = new AtomicLong();
+        private final ConcurrentSkipListMap<Long, Unacked> unacked = new ConcurrentSkipListMap<>();
+        private final List<Consumer> consumers = new CopyOnWriteArrayList<>();
+        private final List<ReturnCallback> returnCallbacks = new CopyOnWriteArrayList<>();
+        private volatile int prefetch;
+        // name of the queue behind amq.rabbitmq.reply-to, once this channel consumes from it
+        private volatile String replyQueue;
+        private volatile boolean closed;
+
+        private record Unacked(Consumer consumer, Message message) {
+        }
+
+        private final class Consumer implements InMemoryBroker.Subscriber {
+            private final String tag;
+            private final MemoryQueue queue;
+            private final boolean autoAck;
+            private final Credit credit;
+            private final DeliverCallback callback;
+
+            Consumer(String tag, MemoryQueue queue, boolean autoAck, int prefetch, DeliverCallback callback) {
+                this.tag = tag;
+                this.queue = queue;
+                this.autoAck = autoAck;
+                this.credit = new Credit(autoAck ? 0 : prefetch);
+                this.callback = callback;
+            }
+
+            @Override
+            public boolean tryAcquire() {
+                return !closed && credit.tryAcquire();
+            }
+
+            @Override
+            public void release() {
+                credit.release();
+            }
+
+            @Override
+            public boolean hasCredit() {
+                return !closed && credit.hasCredit();
+            }
+
+            @Override
+            public void deliver(MemoryQueue queue, Message message) {
+                long deliveryTag = deliveryTags.incrementAndGet();
+                if (!autoAck) unacked.put(deliveryTag, new Unacked(this, message));
+                Delivery delivery = new Delivery(new Envelope(deliveryTag, message.redelivered(), message.exchange(), message.routingKey()), message.props(), message.body());
+                callbacks.execute(this, () -> {
+                    try {
+                        callback.handle(tag, delivery);
+                    } catch (IOException | RuntimeException e) {
+                        Log.error(ANSI_RED, "Consumer {} failed: {}", tag, e);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void exchangeDeclare(String exchange, BuiltinExchangeType type) throws IOException {
+            broker.exchangeDeclare(exchange, type);
+        }
+
+        @Override
+        public void queueDeclare(String queue, boolean durable, boolean exclusive, boolean autoDelete, Map<String, Object> arguments) {
+            // nothing outlives the process, so durable makes no difference
+            broker.queueDeclare(queue, autoDelete || exclusive, arguments);
+        }
+
+        @Override
+        public void queueBind(String queue, String exchange, String routingKey) throws IOException {
+            broker.queueBind(queue, exchange, routingKey);
+        }
+
+        @Override
+        public void queueUnbind(String queue, String exchange, String routingKey) {
+            broker.queueUnbind(queue, exchange, routingKey);
+        }
+
+        @Override
+        public void queueDelete(String queue) {
+            broker.queueDelete(queue);
+        }
+
+        @Override
+        public int messageCount(String queue) throws IOException {
+            return broker.queue(queue).size();
+        }
+
+        @Override
+        public void basicQos(int prefetchCount) {
+            this.prefetch = prefetchCount;
+        }
+
+        @Override
+        public String basicConsume(String queueName, boolean autoAck, DeliverCallback deliverCallback) throws IOException {
+            if (queueName.equals(InMemoryBroker.DIRECT_REPLY_TO)) {
+                if (!autoAck) throw new IOException("PRECONDITION_FAILED - reply consumer cannot acknowledge");
+                queueName = InMemoryBroker.DIRECT_REPLY_TO + ".channel-" + id;
+                broker.queueDeclare(queueName, true, null);
+                replyQueue = queueName;
+            }
+
+            MemoryQueue queue = broker.queue(queueName);
+            Consumer consumer = new Consumer("memory-" + id + "-" + consumers.size(), queue, autoAck, prefetch, deliverCallback);
+            consumers.add(consumer);
+            queue.consumers.add(consumer);
+            // messages may be waiting for a consumer already
+            queue.drain();
+            return consumer.tag;
+        }
+
+        @Override
+        public void basicPublish(String exchange, String routingKey, boolean mandatory, AMQP.BasicProperties props, byte[] body) throws IOException {
+            if (closed) throw new IOException("Channel is closed");
+            if (props != null && InMemoryBroker.DIRECT_REPLY_TO.equals(props.getReplyTo())) {
+                if (replyQueue == null) throw new IOException("PRECONDITION_FAILED - fast reply consumer does not exist");
+                props = props.builder().replyTo(replyQueue).build();
+            }
+
+            if (!broker.publish(exchange, routingKey, props, body) && mandatory) {
+                AMQP.BasicProperties returnedProps = props;
+                Return returned = new Return(312, "NO_ROUTE", exchange, routingKey, returnedProps, body);
+                callbacks.execute(this, () -> {
+                    for (ReturnCallback callback : returnCallbacks) callback.handle(returned);
+                });
+            }
+        }
+
+        @Override
+        public void basicAck(long deliveryTag, boolean multiple) throws IOException {
+            settle(deliveryTag, multiple, unackedMessage -> {
+            });
+        }
+
+        @Override
+        public void basicNack(long deliveryTag, boolean multiple, boolean requeue) throws IOException {
+            settle(deliveryTag, multiple, entry -> {
+                if (requeue) entry.consumer().queue.enqueue(entry.message().redelivery());
+                else broker.deadLetter(entry.consumer().queue, entry.message());
+            });
+        }
+
+        // Removes the deliveries from unacked, gives their prefetch back and lets their queues deliver again.
+        // Like RabbitMQ, a tag the channel isn't waiting for, never delivered or settled already, is a channel
+        // error: the channel closes, and its unacknowledged deliveries go back to their queues.
+        private void settle(long deliveryTag, boolean multiple, java.util.function.Consumer<Unacked> action) throws IOException {
+            if (closed) throw new IOException("Channel is closed");
+            if (!multiple) {
+                Unacked entry = unacked.remove(deliveryTag);
+                if (entry == null) throw unknownDeliveryTag(deliveryTag);
+                settled(entry, action);
+                return;
+            }
+            if (!unacked.containsKey(deliveryTag)) throw unknownDeliveryTag(deliveryTag);
+            Map.Entry<Long, Unacked> first;
+            while ((first = unacked.firstEntry()) != null && first.getKey() <= deliveryTag) {
+                // remove only succeeds for one of two threads settling the same tag
+                if (unacked.remove(first.getKey()) != null) settled(first.getValue(), action);
+            }
+        }
+
+        private IOException unknownDeliveryTag(long deliveryTag) {
+            close();
+            return new IOException("PRECONDITION_FAILED - unknown delivery tag " + deliveryTag);
+        }
+
+        private void settled(Unacked entry, java.util.function.Consumer<Unacked> action) {
+            action.accept(entry);
+            entry.consumer().release();
+            entry.consumer().queue.drain();
+        }
+
+        @Override
+        public void addReturnListener(ReturnCallback returnCallback) {
+            returnCallbacks.add(returnCallback);
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            for (Consumer consumer : consumers) {
+                consumer.queue.consumers.remove(consumer);
+                if (consumer.queue.autoDelete && consumer.queue.consumers.isEmpty()) broker.queueDelete(consumer.queue.name);
+            }
+            // what this channel didn't ack goes back to its queue, as when a RabbitMQ channel closes
+            Map.Entry<Long, Unacked> entry;
+            while ((entry = unacked.pollFirstEntry()) != null) {
+                settled(entry.getValue(), unackedMessage -> unackedMessage.consumer().queue.enqueue(unackedMessage.message().redelivery()));
+            }
+            channels.remove(this);
+        }
+    }
+}
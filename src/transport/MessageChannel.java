@@ -0,0 +1,50 @@
+package src.transport;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.ReturnCallback;
+
+import java.io.IOException;
+import java.util.Map;
+
+// The part of an AMQP channel the buildings, rental agents and customers use. Method names and meaning
+// follow the RabbitMQ client, deliveries and returns are the client's Delivery and Return.
+// Like a RabbitMQ channel, a channel runs the callbacks of its consumers one at a time.
+public interface MessageChannel extends AutoCloseable {
+
+    void exchangeDeclare(String exchange, BuiltinExchangeType type) throws IOException;
+
+    void queueDeclare(String queue, boolean durable, boolean exclusive, boolean autoDelete, Map<String, Object> arguments) throws IOException;
+
+    void queueBind(String queue, String exchange, String routingKey) throws IOException;
+
+    void queueUnbind(String queue, String exchange, String routingKey) throws IOException;
+
+    void queueDelete(String queue) throws IOException;
+
+    // messages waiting in the queue, deliveries that aren't acknowledged yet don't count
+    int messageCount(String queue) throws IOException;
+
+    // unacknowledged deliveries per consumer, for consumers started after the call, 0 means unlimited
+    void basicQos(int prefetchCount) throws IOException;
+
+    // returns the consumer tag
+    String basicConsume(String queue, boolean autoAck, DeliverCallback deliverCallback) throws IOException;
+
+    void basicPublish(String exchange, String routingKey, boolean mandatory, AMQP.BasicProperties props, byte[] body) throws IOException;
+
+    default void basicPublish(String exchange, String routingKey, AMQP.BasicProperties props, byte[] body) throws IOException {
+        basicPublish(exchange, routingKey, false, props, body);
+    }
+
+    void basicAck(long deliveryTag, boolean multiple) throws IOException;
+
+    void basicNack(long deliveryTag, boolean multiple, boolean requeue) throws IOException;
+
+    // called with mandatory messages that no queue took
+    void addReturnListener(ReturnCallback returnCallback);
+
+    @Override
+    void close() throws IOException;
+}
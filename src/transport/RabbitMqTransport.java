@@ -0,0 +1,112 @@
+package src.transport;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.DeliverCallback;
+import com.rabbitmq.client.ReturnCallback;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+// Transport over a RabbitMQ connection, every call goes straight to the client.
+public class RabbitMqTransport implements Transport {
+    private final Connection connection;
+
+    public RabbitMqTransport(Connection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public MessageChannel createChannel() throws IOException {
+        return new RabbitMqChannel(connection.createChannel());
+    }
+
+    @Override
+    public void close() throws IOException {
+        connection.close();
+    }
+
+    private record RabbitMqChannel(Channel channel) implements MessageChannel {
+
+        @Override
+        public void exchangeDeclare(String exchange, BuiltinExchangeType type) throws IOException {
+            channel.exchangeDeclare(exchange, type);
+        }
+
+        @Override
+        public void queueDeclare(String queue, boolean durable, boolean exclusive, boolean autoDelete, Map<String, Object> arguments) throws IOException {
+            channel.queueDeclare(queue, durable, exclusive, autoDelete, arguments);
+        }
+
+        @Override
+        public void queueBind(String queue, String exchange, String routingKey) throws IOException {
+            channel.queueBind(queue, exchange, routingKey);
+        }
+
+        @Override
+        public void queueUnbind(String queue, String exchange, String routingKey) throws IOException {
+            channel.queueUnbind(queue, exchange, routingKey);
+        }
+
+        @Override
+        public void queueDelete(String queue) throws IOException {
+            channel.queueDelete(queue);
+        }
+
+        // Asked on a channel of its own: a passive declare of a missing queue closes the channel it is made on,
+        // and this one carries the consumers.
+        @Override
+        public int messageCount(String queue) throws IOException {
+            Channel probe = channel.getConnection().createChannel();
+            if (probe == null) throw new IOException("No channel left to count the messages of " + queue);
+            try (probe) {
+                return probe.queueDeclarePassive(queue).getMessageCount();
+            } catch (TimeoutException e) {
+                throw new IOException("Timed out closing channel", e);
+            }
+        }
+
+        @Override
+        public void basicQos(int prefetchCount) throws IOException {
+            channel.basicQos(prefetchCount);
+        }
+
+        @Override
+        public String basicConsume(String queue, boolean autoAck, DeliverCallback deliverCallback) throws IOException {
+            return channel.basicConsume(queue, autoAck, deliverCallback, consumerTag -> {
+            });
+        }
+
+        @Override
+        public void basicPublish(String exchange, String routingKey, boolean mandatory, AMQP.BasicProperties props, byte[] body) throws IOException {
+            channel.basicPublish(exchange, routingKey, mandatory, props, body);
+        }
+
+        @Override
+        public void basicAck(long deliveryTag, boolean multiple) throws IOException {
+            channel.basicAck(deliveryTag, multiple);
+        }
+
+        @Override
+        public void basicNack(long deliveryTag, boolean multiple, boolean requeue) throws IOException {
+            channel.basicNack(deliveryTag, multiple, requeue);
+        }
+
+        @Override
+        public void addReturnListener(ReturnCallback returnCallback) {
+            channel.addReturnListener(returnCallback);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } catch (TimeoutException e) {
+                throw new IOException("Timed out closing channel", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package src.transport;
+
+import com.rabbitmq.client.ConnectionFactory;
+import src.runtime.ExecutionMode;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import static src.utils.Config.*;
+
+// A connection to a broker, RabbitMQ or the one inside this JVM.
+public interface Transport extends AutoCloseable {
+
+    MessageChannel createChannel() throws IOException;
+
+    @Override
+    void close() throws IOException;
+
+    // picks the broker from -Drentals.transport=rabbitmq|memory, RabbitMQ on localhost by default
+    static Transport connect(String name, ExecutionMode execution) throws IOException, TimeoutException {
+        return switch (TRANSPORT) {
+            case "rabbitmq" -> new RabbitMqTransport(execution.newConnection(new ConnectionFactory(), name));
+            case "memory" -> new InMemoryTransport(InMemoryBroker.shared(), name, execution);
+            default -> throw new IllegalArgumentException("Unknown transport " + TRANSPORT);
+        };
+    }
+}
@@ -8,6 +8,7 @@ public interface ANSIColors {
     String ANSI_CYAN = "\u001B[36m";
     String ANSI_BLUE = "\u001B[34m";
 
+    // prints right away, for the interactive customer, the roles log through src.logging.Log
     static void coloredPrint(String color, String message) {
         System.out.println(color + message + ANSI_RESET);
     }
@@ -7,12 +7,16 @@ public interface Common {
     String EXCHANGE_PING_ALIVE_BUILDINGS = "ExchangePingAliveBuildings";
     String EXCHANGE_CUSTOMER_REQUEST = "ExchangeCustomerRequest";
     String EXCHANGE_BUILDINGS_REPLIES = "ExchangeBuildingsReplies";
-    String EXCHANGE_RENTAL_AGENTS_REQUESTS = "ExchangeRentalAgentsRequests";
+    String EXCHANGE_DEAD_LETTERS = "ExchangeDeadLetters";
+    String EXCHANGE_REPLIES_TAP = "ExchangeRepliesTap";
+    // requests for a building, routed by its name to its own queue or to a shard queue of its BuildingHost
+    String EXCHANGE_BUILDINGS = "ExchangeBuildings";
 
     // QUEUES
 
     String QUEUE_CUSTOMER_REQUEST = "QueueCustomerRequest";
     String QUEUE_BUILDINGS_REPLIES = "QueueBuildingsReplies";
+    String QUEUE_DEAD_LETTERS = "QueueDeadLetters";
 
     // KEYS
 
@@ -0,0 +1,169 @@
+package src.utils;
+
+// Tunables, read once from JVM system properties (-Dname=value). Defaults keep the original behaviour
+// where there was one.
+public interface Config {
+
+    // TRANSPORT
+
+    // "rabbitmq" on localhost, or "memory" for the broker inside this JVM
+    String TRANSPORT = System.getProperty("rentals.transport", "rabbitmq");
+    // "json" or "binary", codec of the messages a process starts itself, see MessageCodecs
+    String CODEC = System.getProperty("rentals.codec", "json");
+
+    // ACKNOWLEDGEMENTS
+
+    // unacknowledged deliveries the broker may push to one consumer, 0 means unlimited
+    int PREFETCH = Integer.getInteger("rentals.prefetch", 250);
+    int PREFETCH_CUSTOMER_REQUESTS = Integer.getInteger("rentals.prefetch.customer.requests", PREFETCH);
+    int PREFETCH_BUILDINGS_REPLIES = Integer.getInteger("rentals.prefetch.buildings.replies", PREFETCH);
+    // acks are sent once this many deliveries are settled, or when the window runs out
+    int ACK_BATCH_SIZE = Integer.getInteger("rentals.ack.batch", 32);
+    long ACK_WINDOW_MS = Long.getLong("rentals.ack.window.ms", 20);
+
+    // THREADS
+
+    // "platform" or "virtual", see ExecutionMode
+    String THREADS = System.getProperty("rentals.threads", "platform");
+    // print OS thread counts this often, 0 turns it off
+    long THREADS_REPORT_MS = Long.getLong("rentals.threads.report.ms", 0);
+
+    // RENTAL AGENT EXECUTION
+
+    // "per-consumer" gives every consumer its own channel, "shared" keeps them all on one
+    boolean AGENT_CHANNEL_PER_CONSUMER = !System.getProperty("rentals.agent.channels", "per-consumer").equals("shared");
+    // channels the agent publishes on
+    int AGENT_PUBLISH_CHANNELS = Integer.getInteger("rentals.agent.publish.channels", 4);
+    // "platform" for a fixed pool of AGENT_WORKERS threads, "virtual" for a virtual thread per task
+    String AGENT_EXECUTOR = System.getProperty("rentals.agent.executor", THREADS);
+    int AGENT_WORKERS = Integer.getInteger("rentals.agent.workers", Runtime.getRuntime().availableProcessors());
+    // ordering lanes, messages of one customer always go to the same lane
+    int AGENT_LANES = Integer.getInteger("rentals.agent.lanes", AGENT_WORKERS * 4);
+
+    // BUILDING REGISTRY
+
+    // how often buildings ping the rental agents
+    long BUILDING_PING_MS = Long.getLong("rentals.building.ping.ms", 5000);
+    // a building that hasn't pinged for this long is taken off the list, three missed pings by default
+    long REGISTRY_TTL_MS = Long.getLong("rentals.registry.ttl.ms", BUILDING_PING_MS * 3);
+
+    // AVAILABILITY
+
+    // pings carry the free rooms, rental agents turn away reservations for more, "false" forwards them all
+    boolean AGENT_AVAILABILITY_CACHE = !System.getProperty("rentals.agent.availability.cache", "true").equals("false");
+    // after giving rooms back, a building pings again within this long instead of at the next tick, -1 = not early
+    long AVAILABILITY_PING_MS = Long.getLong("rentals.availability.ping.ms", 20);
+    // buildings per page of a search, larger pages are cut down to this
+    int SEARCH_MAX_PAGE_SIZE = Integer.getInteger("rentals.search.page.max", 100);
+
+    // BATCHES
+
+    // a batch without a deadline of its own is answered after this long at the latest, and none waits longer than the max
+    long BATCH_DEADLINE_MS = Long.getLong("rentals.batch.deadline.ms", 2000);
+    long BATCH_MAX_DEADLINE_MS = Long.getLong("rentals.batch.deadline.max.ms", 10_000);
+    // holds made after the deadline are still released when they come in within this long
+    long BATCH_LATE_MS = Long.getLong("rentals.batch.late.ms", 60_000);
+
+    // CALENDAR
+
+    // nights a building takes bookings for, from the day it started, see RoomCalendar
+    int CALENDAR_DAYS = Integer.getInteger("rentals.calendar.days", 730);
+
+    // HOLDS
+
+    // an unconfirmed reservation gives its rooms back after this long
+    long HOLD_TTL_MS = Long.getLong("rentals.hold.ttl.ms", 300_000);
+    // resolution and number of buckets of the timing wheel that expires the holds
+    long HOLD_TICK_MS = Long.getLong("rentals.hold.tick.ms", 100);
+    int HOLD_WHEEL_SIZE = Integer.getInteger("rentals.hold.wheel.size", 512);
+
+    // REPLIES
+
+    // "relay" sends building replies through the rental agents, "direct" straight to the customer's queue
+    boolean DIRECT_REPLIES = System.getProperty("rentals.replies", "relay").equals("direct");
+    // with direct replies, buildings also publish a copy of every reply for the rental agents to observe
+    boolean REPLY_TAP = Boolean.getBoolean("rentals.replies.tap");
+
+    // CLIENT
+
+    // replies to the broker's direct reply-to pseudo queue instead of a queue of the customer's own
+    boolean CLIENT_DIRECT_REPLY_TO = Boolean.getBoolean("rentals.client.direct.reply.to");
+    // a request without a reply fails after this long
+    long CLIENT_TIMEOUT_MS = Long.getLong("rentals.client.timeout.ms", 10_000);
+
+    // DUPLICATES
+
+    // replies to this many recent messages are kept, for this long, to answer redeliveries again
+    int DEDUP_SIZE = Integer.getInteger("rentals.dedup.size", 65_536);
+    long DEDUP_TTL_MS = Long.getLong("rentals.dedup.ttl.ms", 600_000);
+
+    // RESERVATION NUMBERS
+
+    // "snowflake" or "sequential", see ReservationIdGenerator. A restarted building only knows the numbers it
+    // recovered, so sequential numbers of cancelled reservations come back: it is for runs without a journal
+    String RESERVATION_IDS = System.getProperty("rentals.reservation.ids", "snowflake");
+    // node id (0-1023) of snowflake numbers, null derives it from the building name
+    Long NODE_ID = Long.getLong("rentals.node.id");
+
+    // JOURNAL
+
+    // buildings keep their journal and snapshot under <dir>/<building name>, off unless a dir is given
+    String JOURNAL_DIR = System.getProperty("rentals.journal.dir", "");
+    // "group" replies only once the change is on disk, "async" replies right away and syncs in the background
+    boolean JOURNAL_WAIT_FOR_SYNC = !System.getProperty("rentals.journal.sync", "group").equals("async");
+    // the journal file is mapped in chunks of this size
+    int JOURNAL_CHUNK_MB = Integer.getInteger("rentals.journal.chunk.mb", 64);
+    long JOURNAL_SNAPSHOT_MS = Long.getLong("rentals.journal.snapshot.ms", 60_000);
+
+    // BUILDING EXECUTION
+
+    // consumers (each with its own channel) a building runs on its queue
+    int BUILDING_CONSUMERS = Integer.getInteger("rentals.building.consumers", 1);
+
+    // BUILDING HOST, see src.BuildingHost
+
+    // queues a host takes the requests of all its buildings from, a building always goes to the same one
+    int HOST_SHARDS = Integer.getInteger("rentals.host.shards", Runtime.getRuntime().availableProcessors());
+    // channels a host publishes the replies and pings of its buildings on
+    int HOST_PUBLISH_CHANNELS = Integer.getInteger("rentals.host.publish.channels", 4);
+    // pings of this many buildings go out in one message
+    int HOST_PING_BATCH = Integer.getInteger("rentals.host.ping.batch", 500);
+    // buckets of the hold wheel of a hosted building, holds further out than a turn wait in their bucket
+    int HOST_HOLD_WHEEL_SIZE = Integer.getInteger("rentals.host.hold.wheel.size", 64);
+
+    // METRICS
+
+    // Metrics of every building, rental agent and customer are published over JMX, and printed this often, 0 = never
+    boolean METRICS_JMX = !System.getProperty("rentals.metrics.jmx", "true").equals("false");
+    long METRICS_DUMP_MS = Long.getLong("rentals.metrics.dump.ms", 0);
+
+    // LOGGING, see src.logging.Log
+
+    // lowest level written: "debug" prints a line per handled message as before, "info" turns those off,
+    // then "warn", "error" and "off"
+    String LOG_LEVEL = System.getProperty("rentals.log.level", "debug");
+    // "colored" prints in the colours the roles always used, "plain" prefixes the time and level instead
+    String LOG_SINK = System.getProperty("rentals.log.sink", "colored");
+    // entries waiting for the writer, rounded up to a power of two, more are dropped
+    int LOG_BUFFER = Integer.getInteger("rentals.log.buffer", 8192);
+
+    // LOAD GENERATOR, see src.load.LoadGenerator
+
+    // buildings and rental agents the load generator starts itself, 0 uses the ones already running
+    int LOAD_BUILDINGS = Integer.getInteger("rentals.load.buildings", 4);
+    int LOAD_AGENTS = Integer.getInteger("rentals.load.agents", 1);
+    // rooms of every started building, plenty so reservations don't run out during a run
+    int LOAD_ROOMS = Integer.getInteger("rentals.load.rooms", 1_000_000);
+    int LOAD_CUSTOMERS = Integer.getInteger("rentals.load.customers", 8);
+    // "closed": every customer keeps rentals.load.concurrency requests in flight, sending the next when one is answered
+    // "open": requests go out at rentals.load.rate per second in total, whether or not earlier ones were answered
+    boolean LOAD_OPEN_LOOP = System.getProperty("rentals.load.loop", "closed").equals("open");
+    int LOAD_CONCURRENCY = Integer.getInteger("rentals.load.concurrency", 1);
+    int LOAD_RATE = Integer.getInteger("rentals.load.rate", 1000);
+    // relative weights of the requests
+    String LOAD_MIX = System.getProperty("rentals.load.mix", "list:10,reserve:40,confirm:30,cancel:20");
+    long LOAD_WARMUP_S = Long.getLong("rentals.load.warmup.s", 5);
+    long LOAD_DURATION_S = Long.getLong("rentals.load.duration.s", 30);
+    // file the JSON results are written to, stdout when empty
+    String LOAD_OUT = System.getProperty("rentals.load.out", "");
+}